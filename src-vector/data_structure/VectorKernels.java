@@ -0,0 +1,170 @@
+package data_structure;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels of {@link Kernels} on the JDK Vector API, in the widest vectors of the CPU.
+ * Compile with --add-modules jdk.incubator.vector; {@link Kernels} loads this class
+ * when it is found and the module is present at run time.
+ */
+class VectorKernels extends Kernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+
+	protected String name() {
+		return "vector" + SPECIES.vectorBitSize();
+	}
+
+	protected double ddot(int n, double[] x, int xOff, double[] y, int yOff) {
+		// Two accumulators to hide the latency of the fma.
+		DoubleVector acc0 = DoubleVector.zero(SPECIES), acc1 = DoubleVector.zero(SPECIES);
+		int k = 0;
+		for (; k + 2 * LANES <= n; k += 2 * LANES) {
+			acc0 = DoubleVector.fromArray(SPECIES, x, xOff + k)
+					.fma(DoubleVector.fromArray(SPECIES, y, yOff + k), acc0);
+			acc1 = DoubleVector.fromArray(SPECIES, x, xOff + k + LANES)
+					.fma(DoubleVector.fromArray(SPECIES, y, yOff + k + LANES), acc1);
+		}
+		for (; k + LANES <= n; k += LANES) {
+			acc0 = DoubleVector.fromArray(SPECIES, x, xOff + k)
+					.fma(DoubleVector.fromArray(SPECIES, y, yOff + k), acc0);
+		}
+		double sum = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+		for (; k < n; k ++)
+			sum += x[xOff + k] * y[yOff + k];
+		return sum;
+	}
+
+	protected void daxpy(int n, double a, double[] x, int xOff, double[] y, int yOff) {
+		DoubleVector va = DoubleVector.broadcast(SPECIES, a);
+		int k = 0;
+		for (; k + LANES <= n; k += LANES) {
+			DoubleVector.fromArray(SPECIES, x, xOff + k)
+					.fma(va, DoubleVector.fromArray(SPECIES, y, yOff + k))
+					.intoArray(y, yOff + k);
+		}
+		for (; k < n; k ++)
+			y[yOff + k] += a * x[xOff + k];
+	}
+
+	protected void daxpby(int n, double a, double[] x, int xOff, double b, double[] y, int yOff) {
+		int k = 0;
+		for (; k + LANES <= n; k += LANES) {
+			DoubleVector.fromArray(SPECIES, x, xOff + k).mul(a)
+					.add(DoubleVector.fromArray(SPECIES, y, yOff + k).mul(b))
+					.intoArray(y, yOff + k);
+		}
+		for (; k < n; k ++)
+			y[yOff + k] = a * x[xOff + k] + b * y[yOff + k];
+	}
+
+	protected void dsyr(int n, double alpha, double[] x, int xOff, double[] A, int aOff) {
+		for (int f = 0; f < n; f ++) {
+			double xf = x[xOff + f];
+			int row = aOff + f * n;
+			int k = 0;
+			for (; k + LANES <= n; k += LANES) {
+				// (x_k * x_f) * alpha, the same product as entry [k, f].
+				DoubleVector.fromArray(SPECIES, x, xOff + k).mul(xf).mul(alpha)
+						.add(DoubleVector.fromArray(SPECIES, A, row + k))
+						.intoArray(A, row + k);
+			}
+			for (; k < n; k ++)
+				A[row + k] += xf * x[xOff + k] * alpha;
+		}
+	}
+
+	protected void dsyr(int n, double alpha, double[] x, int xOff, double beta, double[] y, int yOff,
+			double[] A, int aOff) {
+		for (int f = 0; f < n; f ++) {
+			double xf = x[xOff + f], yf = y[yOff + f];
+			int row = aOff + f * n;
+			int k = 0;
+			for (; k + LANES <= n; k += LANES) {
+				DoubleVector.fromArray(SPECIES, A, row + k)
+						.add(DoubleVector.fromArray(SPECIES, x, xOff + k).mul(xf).mul(alpha))
+						.add(DoubleVector.fromArray(SPECIES, y, yOff + k).mul(yf).mul(beta))
+						.intoArray(A, row + k);
+			}
+			for (; k < n; k ++)
+				A[row + k] = A[row + k] + xf * x[xOff + k] * alpha + yf * y[yOff + k] * beta;
+		}
+	}
+
+	protected void dgemv(int m, int n, double[] A, int aOff, double[] x, int xOff,
+			double[] y, int yOff) {
+		int i = 0;
+		for (; i + 3 < m; i += 4) {
+			int o0 = aOff + i * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+			DoubleVector s0 = DoubleVector.zero(SPECIES), s1 = s0, s2 = s0, s3 = s0;
+			int k = 0;
+			for (; k + LANES <= n; k += LANES) {
+				DoubleVector xk = DoubleVector.fromArray(SPECIES, x, xOff + k);
+				s0 = xk.fma(DoubleVector.fromArray(SPECIES, A, o0 + k), s0);
+				s1 = xk.fma(DoubleVector.fromArray(SPECIES, A, o1 + k), s1);
+				s2 = xk.fma(DoubleVector.fromArray(SPECIES, A, o2 + k), s2);
+				s3 = xk.fma(DoubleVector.fromArray(SPECIES, A, o3 + k), s3);
+			}
+			double r0 = s0.reduceLanes(VectorOperators.ADD), r1 = s1.reduceLanes(VectorOperators.ADD);
+			double r2 = s2.reduceLanes(VectorOperators.ADD), r3 = s3.reduceLanes(VectorOperators.ADD);
+			for (; k < n; k ++) {
+				double xk = x[xOff + k];
+				r0 += xk * A[o0 + k];
+				r1 += xk * A[o1 + k];
+				r2 += xk * A[o2 + k];
+				r3 += xk * A[o3 + k];
+			}
+			y[yOff + i] = r0;
+			y[yOff + i + 1] = r1;
+			y[yOff + i + 2] = r2;
+			y[yOff + i + 3] = r3;
+		}
+		for (; i < m; i ++)
+			y[yOff + i] = ddot(n, x, xOff, A, aOff + i * n);
+	}
+
+	protected void dsyrk(int m, int n, double[] A, int aOff, double[] w, double[] C, int cOff) {
+		int r = 0;
+		// Four rows of A per pass over C.
+		for (; r + 3 < m; r += 4) {
+			int o0 = aOff + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+			double w0 = w == null ? 1 : w[r], w1 = w == null ? 1 : w[r + 1];
+			double w2 = w == null ? 1 : w[r + 2], w3 = w == null ? 1 : w[r + 3];
+			for (int f = 0; f < n; f ++) {
+				double a0 = A[o0 + f], a1 = A[o1 + f], a2 = A[o2 + f], a3 = A[o3 + f];
+				int row = cOff + f * n;
+				int k = 0;
+				for (; k + LANES <= f + 1; k += LANES) {
+					DoubleVector c = DoubleVector.fromArray(SPECIES, C, row + k);
+					c = c.add(DoubleVector.fromArray(SPECIES, A, o0 + k).mul(a0).mul(w0));
+					c = c.add(DoubleVector.fromArray(SPECIES, A, o1 + k).mul(a1).mul(w1));
+					c = c.add(DoubleVector.fromArray(SPECIES, A, o2 + k).mul(a2).mul(w2));
+					c = c.add(DoubleVector.fromArray(SPECIES, A, o3 + k).mul(a3).mul(w3));
+					c.intoArray(C, row + k);
+				}
+				for (; k <= f; k ++) {
+					C[row + k] = C[row + k] + a0 * A[o0 + k] * w0 + a1 * A[o1 + k] * w1
+							+ a2 * A[o2 + k] * w2 + a3 * A[o3 + k] * w3;
+				}
+			}
+		}
+		for (; r < m; r ++) {
+			int o = aOff + r * n;
+			double wr = w == null ? 1 : w[r];
+			for (int f = 0; f < n; f ++) {
+				double af = A[o + f];
+				int row = cOff + f * n;
+				int k = 0;
+				for (; k + LANES <= f + 1; k += LANES) {
+					DoubleVector.fromArray(SPECIES, C, row + k)
+							.add(DoubleVector.fromArray(SPECIES, A, o + k).mul(af).mul(wr))
+							.intoArray(C, row + k);
+				}
+				for (; k <= f; k ++)
+					C[row + k] = C[row + k] + af * A[o + k] * wr;
+			}
+		}
+	}
+}
@@ -1,14 +1,14 @@
 package algorithms;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.Arrays;
 
-import utils.CommonUtils;
+import utils.TopKHeap;
+import utils.WorkPool;
+import data_structure.AdjacencyMatrix;
+import data_structure.CSRMatrix;
 import data_structure.Rating;
 import data_structure.SparseMatrix;
-import data_structure.SparseVector;
 
 /**
  * Implement ItemKNN method for topK recommendation, as described in:
@@ -21,8 +21,11 @@ import data_structure.SparseVector;
  */
 public class ItemKNN extends TopKRecommender {
 
-	/** Similarity matrix of item-item . */
-	public SparseMatrix similarity;
+	/**
+	 * Similarity matrix of item-item, the neighbors of item i in row i.
+	 * Not updated by updateModel, which works on a mutable copy.
+	 */
+	public CSRMatrix similarity;
 
 	/** K neighbors to consider for each item */
 	private int K = 0;
@@ -30,88 +33,456 @@ public class ItemKNN extends TopKRecommender {
 	/** Cache the L2 length for each item. */
 	double[] lengths;
 	
+	// Compressed snapshot of the ratings, to walk the rows and columns.
+	CSRMatrix trainCSR;
+	
+	// Neighbors and similarities of each item, filled by the threads before building the CSR.
+	private int[][] neighbors;
+	private double[][] neighborScores;
+	
+	// Online state, created by the first updateModel: the ratings and the similarities
+	// as mutable matrices, replacing trainCSR and similarity. The online ratings are kept
+	// here only, not in trainMatrix.
+	AdjacencyMatrix online, onlineSimilarity;
+	// Items whose co-occurrences with all other items are in the pair table.
+	private boolean[] tracked;
+	// Open-addressing table of the co-occurrences (dot products) of item pairs,
+	// keyed by i * itemCount + j + 1 for i < j, 0 for empty slots.
+	private long[] pairKeys;
+	private double[] pairDots;
+	private int pairCount;
+	// Min-heaps over the neighbors of the items with K neighbors, built on first use.
+	// An entry is out of date once its score differs from the similarity; such entries
+	// are dropped when they reach the top.
+	private int[][] heapItems;
+	private double[][] heapScores;
+	private int[] heapSize;
+	// Scratch space to accumulate the co-occurrences of an item.
+	private double[] dots;
+	private boolean[] seen;
+	private int[] touched;
+	
 	public ItemKNN(SparseMatrix trainMatrix, ArrayList<Rating> testRatings, 
 			int topK, int threadNum, int K) {
-		super(trainMatrix, testRatings, topK, threadNum);
+		this(new CSRMatrix(trainMatrix), testRatings, topK, threadNum, K);
+		this.trainMatrix = new SparseMatrix(trainMatrix);
+	}
+	
+	public ItemKNN(CSRMatrix trainRatings, ArrayList<Rating> testRatings, 
+			int topK, int threadNum, int K) {
+		super(trainRatings, testRatings, topK, threadNum);
 		this.K = K;
-		this.similarity = new SparseMatrix(itemCount, itemCount);
+		this.similarity = new CSRMatrix(itemCount, itemCount, new int[0], new int[0], new double[0], 0);
+		this.trainCSR = trainRatings;
 	}
 
 	public void buildModel() {
+		trainCSR = trainRatings();
+		online = onlineSimilarity = null;
 		// The length cache
 		lengths = new double[itemCount];
+		int[] colPtr = trainCSR.colPtr();
+		double[] colValues = trainCSR.colValues();
 		for (int i = 0; i < itemCount; i ++) {
-			lengths[i] = Math.sqrt(trainMatrix.getColRef(i).squareSum());
+			double sum = 0;
+			for (int k = colPtr[i]; k < colPtr[i + 1]; k ++)
+				sum += colValues[k] * colValues[k];
+			lengths[i] = Math.sqrt(sum);
 		}
+		neighbors = new int[itemCount][];
+		neighborScores = new double[itemCount][];
 		
-		// Run model multi-threads splitted by items.
-		ItemKNNThread[] threads = new ItemKNNThread[threadNum];
-		for (int t = 0; t < threadNum; t ++) {
-			int startItem = (itemCount / threadNum) * t;
-			int endItem = (t == threadNum-1) ? itemCount : 
-				(itemCount / threadNum) * (t + 1);
-			threads[t] = new ItemKNNThread(this, startItem, endItem);
-			threads[t].start();
+		// Run model multi-threads splitted by items, an item costing the ratings of its users.
+		final int[] rowPtr = trainCSR.rowPtr(), users = trainCSR.rowIndex();
+		long[] costs = new long[itemCount];
+		for (int i = 0; i < itemCount; i ++) {
+			costs[i] = 1;
+			for (int p = colPtr[i]; p < colPtr[i + 1]; p ++)
+				costs[i] += rowPtr[users[p] + 1] - rowPtr[users[p]];
 		}
+		final BuildScratch[] scratch = new BuildScratch[threadNum];
+		WorkPool.run(threadNum, costs, new WorkPool.RangeTask() {
+			public void run(int worker, int start, int end) {
+				if (scratch[worker] == null)	scratch[worker] = new BuildScratch();
+				buildModel_items(start, end, scratch[worker]);
+			}
+		});
 		
-		// Wait until all threads are finished.
-		for (int t = 0; t < threads.length; t++) { 
-		  try {
-				threads[t].join();
-			} catch (InterruptedException e) {
-				System.err.println("InterruptException was caught: " + e.getMessage());
+		// Gather the neighbor lists into the similarity matrix.
+		int nnz = 0;
+		for (int i = 0; i < itemCount; i ++)
+			nnz += neighbors[i].length;
+		int[] rows = new int[nnz], cols = new int[nnz];
+		double[] values = new double[nnz];
+		int pos = 0;
+		for (int i = 0; i < itemCount; i ++) {
+			for (int k = 0; k < neighbors[i].length; k ++) {
+				rows[pos] = i;
+				cols[pos] = neighbors[i][k];
+				values[pos ++] = neighborScores[i][k];
 			}
 		}
+		neighbors = null;
+		neighborScores = null;
+		similarity = new CSRMatrix(itemCount, itemCount, rows, cols, values, nnz);
 	}
 	
-	protected void buildModel_items(int startItem, int endItem) {
-		// Build the similarity matrix for selected items.
+	/**
+	 * Build the neighbors of items [startItem, endItem). The cosine similarity of item i with 
+	 * every item sharing a user is accumulated by walking the rows of the users of i, so items
+	 * that never co-occur with i cost nothing.
+	 */
+	protected void buildModel_items(int startItem, int endItem, BuildScratch scratch) {
+		int[] rowPtr = trainCSR.rowPtr(), items = trainCSR.colIndex();
+		double[] rowValues = trainCSR.rowValues();
+		int[] colPtr = trainCSR.colPtr(), users = trainCSR.rowIndex();
+		double[] colValues = trainCSR.colValues();
+		double[] dots = scratch.dots, sims = scratch.sims;
+		boolean[] seen = scratch.seen;
+		int[] touched = scratch.touched;
+		TopKHeap heap = scratch.heap;
+		
 		for (int i = startItem; i < endItem; i ++) {
-			HashMap<Integer, Double> map_item_score = new HashMap<Integer, Double>();
-			for (int j = 0; j < itemCount & j != i; j ++) {
-				// Cosine similarity
-				double score = trainMatrix.getColRef(i).innerProduct(trainMatrix.getColRef(j));
-				if (score != 0) {
-					score /= (lengths[i] * lengths[j]);
-					map_item_score.put(j, score);
+			int count = 0;
+			for (int p = colPtr[i]; p < colPtr[i + 1]; p ++) {
+				int u = users[p];
+				double r_ui = colValues[p];
+				for (int q = rowPtr[u]; q < rowPtr[u + 1]; q ++) {
+					int j = items[q];
+					if (j == i)	continue;
+					if (!seen[j]) {
+						seen[j] = true;
+						touched[count ++] = j;
+					}
+					dots[j] += r_ui * rowValues[q];
 				}
 			}
-			if (K <= 0) {  // All neighbors
-				for (int j : map_item_score.keySet()) {
-					similarity.setValue(i, j, map_item_score.get(j));
+			
+			// Cosine similarity; all neighbors, or only the K nearest.
+			if (heap != null)	heap.clear();
+			int size = 0;
+			for (int c = 0; c < count; c ++) {
+				int j = touched[c];
+				double score = dots[j] / (lengths[i] * lengths[j]);
+				dots[j] = 0;
+				seen[j] = false;
+				if (score == 0)	continue;
+				if (heap != null) {
+					heap.add(j, score);
+				} else {
+					touched[size] = j;
+					sims[size ++] = score;
 				}
-			} else {  // Only K nearest neighbors
-				for (int j : CommonUtils.TopKeysByValue(map_item_score, K, null)) {
-					similarity.setValue(i, j, map_item_score.get(j));
+			}
+			if (heap != null) {
+				size = heap.size();
+				neighbors[i] = new int[size];
+				neighborScores[i] = new double[size];
+				for (int k = 0; k < size; k ++) {
+					neighbors[i][k] = heap.id(k);
+					neighborScores[i][k] = heap.score(k);
 				}
-			} // end if
+			} else {
+				neighbors[i] = Arrays.copyOf(touched, size);
+				neighborScores[i] = Arrays.copyOf(sims, size);
+			}
 		} // end for
 	}
 	
+	// Scratch space of a thread building the neighbors, left cleared between items.
+	class BuildScratch {
+		// Dot products with item i, and the items set in it.
+		double[] dots = new double[itemCount];
+		boolean[] seen = new boolean[itemCount];
+		int[] touched = new int[itemCount];
+		// The K nearest neighbors, or all of them (compacted in touched and sims).
+		TopKHeap heap = K > 0 ? new TopKHeap(K) : null;
+		double[] sims = K > 0 ? null : new double[itemCount];
+	}
+	
+	@Override
+	protected CSRMatrix trainRatings() {
+		return online != null ? online.toCSR(false) : trainCSR;
+	}
+	
 	public double predict(int u, int i) {
-		return trainMatrix.getRowRef(u).innerProduct(similarity.getRowRef(i));
+		if (online != null) {
+			return mergeDot(online.rowIndex(u), online.rowValues(u), 0, online.rowSize(u),
+					onlineSimilarity.rowIndex(i), onlineSimilarity.rowValues(i), 0,
+					onlineSimilarity.rowSize(i));
+		}
+		int[] rowPtr = trainCSR.rowPtr(), simPtr = similarity.rowPtr();
+		return mergeDot(trainCSR.colIndex(), trainCSR.rowValues(), rowPtr[u], rowPtr[u + 1],
+				similarity.colIndex(), similarity.rowValues(), simPtr[i], simPtr[i + 1]);
+	}
+	
+	// Dot product of two sparse rows sorted by index, a[aFrom, aTo) and b[bFrom, bTo).
+	private static double mergeDot(int[] aIdx, double[] aVal, int aFrom, int aTo,
+			int[] bIdx, double[] bVal, int bFrom, int bTo) {
+		double score = 0;
+		int p = aFrom, q = bFrom;
+		while (p < aTo && q < bTo) {
+			if (aIdx[p] < bIdx[q])	p ++;
+			else if (aIdx[p] > bIdx[q])	q ++;
+			else	score += aVal[p ++] * bVal[q ++];
+		}
+		return score;
+	}
+	
+	/**
+	 * Scores of all items from the columns of the similarity matrix: each item j of the user
+	 * adds its similarity to every item that has j as a neighbor.
+	 */
+	@Override
+	public void scoreAll(int[] users, double[][] out) {
+		if (online != null) {
+			scoreAllOnline(users, out);
+			return;
+		}
+		int[] rowPtr = trainCSR.rowPtr(), items = trainCSR.colIndex();
+		double[] rowValues = trainCSR.rowValues();
+		int[] colPtr = similarity.colPtr(), simItems = similarity.rowIndex();
+		double[] simValues = similarity.colValues();
+		for (int r = 0; r < users.length; r ++) {
+			double[] scores = out[r];
+			Arrays.fill(scores, 0, itemCount, 0);
+			int u = users[r];
+			for (int p = rowPtr[u]; p < rowPtr[u + 1]; p ++) {
+				int j = items[p];
+				double r_uj = rowValues[p];
+				for (int q = colPtr[j]; q < colPtr[j + 1]; q ++)
+					scores[simItems[q]] += r_uj * simValues[q];
+			}
+		}
 	}
 
+	private void scoreAllOnline(int[] users, double[][] out) {
+		for (int r = 0; r < users.length; r ++) {
+			double[] scores = out[r];
+			Arrays.fill(scores, 0, itemCount, 0);
+			int u = users[r];
+			int[] items = online.rowIndex(u);
+			double[] values = online.rowValues(u);
+			for (int p = 0; p < online.rowSize(u); p ++) {
+				int j = items[p];
+				int[] simItems = onlineSimilarity.colIndex(j);
+				double[] simValues = onlineSimilarity.colValues(j);
+				for (int q = 0; q < onlineSimilarity.colSize(j); q ++)
+					scores[simItems[q]] += values[p] * simValues[q];
+			}
+		}
+	}
+
+	/**
+	 * Incremental update of the similarities for a new interaction, in the spirit of the
+	 * item-based CF of TencentRec [Huang et al. SIGMOD 2015]. The co-occurrences of item i
+	 * with the items of u and the length of i are updated exactly; then only the pairs
+	 * (i, j) for j rated by u are scored again, in the neighbor lists of both items.
+	 * The cost is O(|R(u)| log K), plus one pass over the co-occurrences of i the first
+	 * time i gets an update.
+	 */
 	@Override
 	public void updateModel(int u, int i) {
-		// TODO Implement SIGMOD15 paper
-		
+		if (online == null)	startOnline();
+		double old = online.getValue(u, i);
+		if (old == 1)	return;
+		track(i);
+
+		lengths[i] = Math.sqrt(lengths[i] * lengths[i] + 1 - old * old);
+		int[] items = online.rowIndex(u);
+		double[] values = online.rowValues(u);
+		// Score the current neighbors of i first, so that the new candidates are compared
+		// with their new scores.
+		for (int p = 0; p < online.rowSize(u); p ++) {
+			int j = items[p];
+			if (j == i)	continue;
+			dots[j] = addPair(i, j, (1 - old) * values[p]) / (lengths[i] * lengths[j]);
+			offer(j, i, dots[j]);
+			if (isNeighbor(i, j))	offer(i, j, dots[j]);
+		}
+		for (int p = 0; p < online.rowSize(u); p ++) {
+			int j = items[p];
+			if (j == i)	continue;
+			if (!isNeighbor(i, j))	offer(i, j, dots[j]);
+			dots[j] = 0;
+		}
+		online.set(u, i, 1, 1);
 	}
-}
 
-// Thread for building model for ItemKNN.
-class ItemKNNThread extends Thread {
-	ItemKNN model;
-	int startItem;
-	int endItem;
+	// Switch from the CSR snapshots to mutable matrices.
+	private void startOnline() {
+		online = new AdjacencyMatrix(trainCSR, trainCSR);
+		onlineSimilarity = new AdjacencyMatrix(similarity, similarity);
+		tracked = new boolean[itemCount];
+		pairKeys = new long[1024];
+		pairDots = new double[1024];
+		pairCount = 0;
+		heapItems = new int[itemCount][];
+		heapScores = new double[itemCount][];
+		heapSize = new int[itemCount];
+		dots = new double[itemCount];
+		seen = new boolean[itemCount];
+		touched = new int[itemCount];
+	}
 
-	public ItemKNNThread(ItemKNN model, int startItem, int endItem) {
-		this.model = model;
-		this.startItem = startItem;
-		this.endItem = endItem;
+	/**
+	 * Put the co-occurrences of item i in the pair table, from the current ratings.
+	 * Pairs with an item tracked before are there already, and kept up to date by updateModel.
+	 */
+	private void track(int i) {
+		if (tracked[i])	return;
+		tracked[i] = true;
+		int count = 0;
+		int[] users = online.colIndex(i);
+		double[] colValues = online.colValues(i);
+		for (int p = 0; p < online.colSize(i); p ++) {
+			int u = users[p];
+			int[] items = online.rowIndex(u);
+			double[] values = online.rowValues(u);
+			for (int q = 0; q < online.rowSize(u); q ++) {
+				int j = items[q];
+				if (j == i)	continue;
+				if (!seen[j]) {
+					seen[j] = true;
+					touched[count ++] = j;
+				}
+				dots[j] += colValues[p] * values[q];
+			}
+		}
+		for (int c = 0; c < count; c ++) {
+			int j = touched[c];
+			if (!tracked[j])	addPair(i, j, dots[j]);
+			dots[j] = 0;
+			seen[j] = false;
+		}
 	}
-	
-	public void run() {
-		model.buildModel_items(startItem, endItem);
+
+	// Add delta to the co-occurrence of items i and j, inserting the pair if absent.
+	private double addPair(int i, int j, double delta) {
+		long key = i < j ? (long) i * itemCount + j + 1 : (long) j * itemCount + i + 1;
+		int slot = pairSlot(key);
+		if (pairKeys[slot] == 0) {
+			if (2 * (pairCount + 1) > pairKeys.length) {
+				growPairs();
+				slot = pairSlot(key);
+			}
+			pairKeys[slot] = key;
+			pairCount ++;
+		}
+		pairDots[slot] += delta;
+		return pairDots[slot];
+	}
+
+	// The slot of key, or the empty slot where it goes.
+	private int pairSlot(long key) {
+		int mask = pairKeys.length - 1;
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (pairKeys[slot] != 0 && pairKeys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void growPairs() {
+		long[] keys = pairKeys;
+		double[] values = pairDots;
+		pairKeys = new long[keys.length * 2];
+		pairDots = new double[keys.length * 2];
+		for (int k = 0; k < keys.length; k ++) {
+			if (keys[k] == 0)	continue;
+			int slot = pairSlot(keys[k]);
+			pairKeys[slot] = keys[k];
+			pairDots[slot] = values[k];
+		}
+	}
+
+	/**
+	 * Set the similarity of neighbor j of item i, or offer j as a new neighbor. Once i has
+	 * K neighbors, j replaces the least similar one if it is more similar.
+	 */
+	private void offer(int i, int j, double score) {
+		int size = onlineSimilarity.rowSize(i);
+		if (!isNeighbor(i, j)) {
+			if (score == 0)	return;
+			if (K > 0 && size >= K) {
+				int least = leastSimilar(i);
+				if (score <= heapScores[i][0])	return;
+				onlineSimilarity.remove(i, least);
+				heapPop(i);
+			}
+		}
+		onlineSimilarity.set(i, j, score, score);
+		if (heapItems[i] != null)	heapPush(i, j, score);
+	}
+
+	private boolean isNeighbor(int i, int j) {
+		return Arrays.binarySearch(onlineSimilarity.rowIndex(i), 0, onlineSimilarity.rowSize(i), j) >= 0;
+	}
+
+	// The least similar of the K neighbors of item i, on top of its heap.
+	private int leastSimilar(int i) {
+		if (heapItems[i] == null)	rebuildHeap(i);
+		while (true) {
+			int j = heapItems[i][0];
+			int[] items = onlineSimilarity.rowIndex(i);
+			int pos = Arrays.binarySearch(items, 0, onlineSimilarity.rowSize(i), j);
+			if (pos >= 0 && onlineSimilarity.rowValues(i)[pos] == heapScores[i][0])
+				return j;
+			heapPop(i);
+		}
+	}
+
+	// Heap of the current neighbors of item i, with room for as many out of date entries.
+	private void rebuildHeap(int i) {
+		int size = onlineSimilarity.rowSize(i);
+		if (heapItems[i] == null) {
+			heapItems[i] = new int[2 * Math.max(K, size)];
+			heapScores[i] = new double[2 * Math.max(K, size)];
+		}
+		System.arraycopy(onlineSimilarity.rowIndex(i), 0, heapItems[i], 0, size);
+		System.arraycopy(onlineSimilarity.rowValues(i), 0, heapScores[i], 0, size);
+		heapSize[i] = size;
+		for (int pos = size / 2 - 1; pos >= 0; pos --)
+			siftDown(heapItems[i], heapScores[i], pos, heapItems[i][pos], heapScores[i][pos], size);
+	}
+
+	private void heapPush(int i, int j, double score) {
+		if (heapSize[i] == heapItems[i].length) {
+			// Full of out of date entries: the neighbors, score of j included, are enough.
+			rebuildHeap(i);
+			return;
+		}
+		int[] items = heapItems[i];
+		double[] scores = heapScores[i];
+		int pos = heapSize[i] ++;
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (scores[parent] <= score)	break;
+			items[pos] = items[parent];
+			scores[pos] = scores[parent];
+			pos = parent;
+		}
+		items[pos] = j;
+		scores[pos] = score;
+	}
+
+	private void heapPop(int i) {
+		int n = -- heapSize[i];
+		siftDown(heapItems[i], heapScores[i], 0, heapItems[i][n], heapScores[i][n], n);
+	}
+
+	// Place (id, score) at pos and move it down within heap[0, n).
+	private static void siftDown(int[] ids, double[] scores, int pos, int id, double score, int n) {
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= n)	break;
+			if (child + 1 < n && scores[child + 1] < scores[child])	child ++;
+			if (scores[child] >= score)	break;
+			ids[pos] = ids[child];
+			scores[pos] = scores[child];
+			pos = child;
+		}
+		ids[pos] = id;
+		scores[pos] = score;
 	}
 }
@@ -3,32 +3,54 @@ package algorithms;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import data_structure.AdjacencyMatrix;
+import data_structure.CSRMatrix;
 import data_structure.Rating;
 import data_structure.SparseMatrix;
 
 public class ItemPopularity extends TopKRecommender {
 
 	double[] item_popularity;
+	// Appendable rows and columns of trainMatrix, created by the first update. From then on
+	// they hold the ratings, so an update does not touch trainMatrix.
+	AdjacencyMatrix online;
+	
 	public ItemPopularity(SparseMatrix trainMatrix, ArrayList<Rating> testRatings, 
 			int topK, int threadNum) {
-		super(trainMatrix, testRatings, topK, threadNum);
+		this(new CSRMatrix(trainMatrix), testRatings, topK, threadNum);
+		this.trainMatrix = new SparseMatrix(trainMatrix);
+	}
+	
+	public ItemPopularity(CSRMatrix trainRatings, ArrayList<Rating> testRatings, 
+			int topK, int threadNum) {
+		super(trainRatings, testRatings, topK, threadNum);
 		item_popularity = new double[itemCount];
 	}
 	
 	public void buildModel() {
+		int[] colPtr = trainRatings().colPtr();
 		for (int i = 0; i < itemCount; i++) {
 			// Measure popularity by number of reviews received.
-			item_popularity[i] = trainMatrix.getColRef(i).itemCount();
+			item_popularity[i] = colPtr[i + 1] - colPtr[i];
 		}
 	}
 	
+	@Override
+	protected CSRMatrix trainRatings() {
+		return online != null ? online.toCSR(false) : initialRatings();
+	}
+	
 	public double predict(int u, int i) {
 		return item_popularity[i];
 	}
 
 	@Override
 	public void updateModel(int u, int i) {
-		trainMatrix.setValue(u, i, 1);
+		if (online == null) {
+			CSRMatrix R = initialRatings();
+			online = new AdjacencyMatrix(R, R);
+		}
+		online.set(u, i, 1, 1);
 		item_popularity[i] += 1;
 	}
 }
@@ -0,0 +1,183 @@
+package algorithms;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import data_structure.CSRMatrix;
+import data_structure.Kernels;
+import data_structure.Rating;
+import data_structure.SparseMatrix;
+import utils.Benchmark;
+import utils.SyntheticData;
+
+/**
+ * Micro benchmarks of the per-user and per-item update kernels of the MF models on synthetic
+ * power-law data, for each number of factors and skew. Every kernel is timed over all rows
+ * in turn ("all") and over the 1% rows with the most ratings ("heavy"). The linear algebra
+ * kernels they call into are timed alone first, labelled with the implementation in use.
+ *
+ * Usage: KernelBenchmark [factors=16,64,256] [skews=0.5,1.0] [users] [items] [nnz] [csvFile]
+ */
+public class KernelBenchmark {
+	static PrintWriter csv;
+
+	public static void main(String[] args) throws IOException {
+		int[] factorList = {16, 64, 256};
+		double[] skews = {0.5, 1.0};
+		int users = 20000, items = 10000, nnz = 500000;
+		if (args.length > 0)	factorList = parseInts(args[0]);
+		if (args.length > 1) {
+			String[] parts = args[1].split(",");
+			skews = new double[parts.length];
+			for (int k = 0; k < parts.length; k ++)
+				skews[k] = Double.parseDouble(parts[k]);
+		}
+		if (args.length > 2)	users = Integer.parseInt(args[2]);
+		if (args.length > 3)	items = Integer.parseInt(args[3]);
+		if (args.length > 4)	nnz = Integer.parseInt(args[4]);
+		if (args.length > 5) {
+			csv = new PrintWriter(new FileOutputStream(args[5]));
+			csv.println("kernel,rows,factors,skew,ns_per_op,stdev,ops");
+		}
+
+		Benchmark bench = new Benchmark();
+		for (double skew : skews) {
+			CSRMatrix data = SyntheticData.powerLaw(users, items, nnz, skew, 1);
+			SparseMatrix train = data.toSparseMatrix();
+			System.out.printf("Synthetic data: %d users, %d items, %d ratings, skew=%.2f, "
+					+ "max user/item degree %d/%d\n", users, items, data.itemCount(), skew,
+					data.maxRowSize(), data.maxColSize());
+			final int[] allUsers = range(users), allItems = range(items);
+			final int[] heavyUsers = heaviest(data.rowPtr(), users / 100);
+			final int[] heavyItems = heaviest(data.colPtr(), items / 100);
+			// (user, item) pairs of the training data, for BPR.
+			final int[] pairUsers = new int[data.itemCount()];
+			final int[] pairItems = data.colIndex();
+			for (int u = 0; u < users; u ++)
+				Arrays.fill(pairUsers, data.rowPtr()[u], data.rowPtr()[u + 1], u);
+			ArrayList<Rating> test = new ArrayList<Rating>();
+
+			for (int K : factorList) {
+				String params = "K=" + K + ", skew=" + skew;
+				// The linear algebra kernels alone, on 1024 random rows of K factors.
+				final int n = K;
+				final double[] block = new double[1024 * K], gram = new double[K * K], y = new double[1024];
+				Random rand = new Random(1);
+				for (int k = 0; k < block.length; k ++)
+					block[k] = rand.nextGaussian();
+				String impl = Kernels.implementation();
+				report(bench.run("Kernels.dot " + impl + " " + params, new Benchmark.Operation() {
+					public double run(int op) {
+						return Kernels.dot(n, block, (op & 1023) * n, block, ((op + 1) & 1023) * n);
+					}
+				}), "Kernels.dot", impl, K, skew);
+				report(bench.run("Kernels.syr " + impl + " " + params, new Benchmark.Operation() {
+					public double run(int op) {
+						Kernels.syr(n, (op & 1) == 0 ? 1 : -1, block, (op & 1023) * n, gram, 0);
+						return gram[0];
+					}
+				}), "Kernels.syr", impl, K, skew);
+				report(bench.run("Kernels.gemv 1024 rows " + impl + " " + params, new Benchmark.Operation() {
+					public double run(int op) {
+						Kernels.gemv(1024, n, block, 0, block, (op & 1023) * n, y, 0);
+						return y[op & 1023];
+					}
+				}), "Kernels.gemv", impl, K, skew);
+				
+				final MF_fastALS fals = new MF_fastALS(train, test, 10, 1, K, 0, 1, 0.5, 0.01,
+						0, 0.01, false, false);
+				final MF_ALS als = new MF_ALS(train, test, 10, 1, K, 0, 1, 0.01, 0, 0.01, false, false);
+				final MF_CD cd = new MF_CD(train, test, 10, 1, K, 0, 1, 0.01, 0, 0.01, false, false);
+				final MFbpr bpr = new MFbpr(train, test, 10, 1, K, 0, 0.01, false, 0.01, 0, 0.01, 1, false);
+
+				for (final int[] rows : new int[][] {allUsers, heavyUsers}) {
+					String set = rows == allUsers ? "all" : "heavy";
+					report(bench.run("MF_fastALS.update_user " + set + " " + params, new Benchmark.Operation() {
+						public double run(int op) {
+							int u = rows[op % rows.length];
+							fals.update_user(u);
+							return fals.U.get(u, 0);
+						}
+					}), "MF_fastALS.update_user", set, K, skew);
+					report(bench.run("MF_ALS.update_user " + set + " " + params, new Benchmark.Operation() {
+						public double run(int op) {
+							int u = rows[op % rows.length];
+							als.update_user(u);
+							return als.U.get(u, 0);
+						}
+					}), "MF_ALS.update_user", set, K, skew);
+					report(bench.run("MF_CD.update_user " + set + " " + params, new Benchmark.Operation() {
+						public double run(int op) {
+							int u = rows[op % rows.length];
+							cd.update_user(u);
+							return cd.U.get(u, 0);
+						}
+					}), "MF_CD.update_user", set, K, skew);
+				}
+				for (final int[] rows : new int[][] {allItems, heavyItems}) {
+					String set = rows == allItems ? "all" : "heavy";
+					report(bench.run("MF_fastALS.update_item " + set + " " + params, new Benchmark.Operation() {
+						public double run(int op) {
+							int i = rows[op % rows.length];
+							fals.update_item(i);
+							return fals.V.get(i, 0);
+						}
+					}), "MF_fastALS.update_item", set, K, skew);
+				}
+				report(bench.run("MFbpr.update_ui all " + params, new Benchmark.Operation() {
+					public double run(int op) {
+						int p = (int) ((op * 2654435761L) % pairUsers.length);  // scattered pairs
+						bpr.update_ui(pairUsers[p], pairItems[p]);
+						return bpr.V.get(pairItems[p], 0);
+					}
+				}), "MFbpr.update_ui", "all", K, skew);
+			}
+		}
+		if (csv != null)	csv.close();
+	}
+
+	private static void report(Benchmark.Result result, String kernel, String rows, int K, double skew) {
+		System.out.println(result);
+		if (csv != null) {
+			csv.printf("%s,%s,%d,%.2f,%.1f,%.1f,%d\n", kernel, rows, K, skew,
+					result.mean(), result.stdev(), result.ops);
+			csv.flush();
+		}
+	}
+
+	private static int[] parseInts(String list) {
+		String[] parts = list.split(",");
+		int[] res = new int[parts.length];
+		for (int k = 0; k < parts.length; k ++)
+			res[k] = Integer.parseInt(parts[k]);
+		return res;
+	}
+
+	private static int[] range(int n) {
+		int[] res = new int[n];
+		for (int k = 0; k < n; k ++)
+			res[k] = k;
+		return res;
+	}
+
+	// The count rows (at least one) with the most entries, given the row pointers.
+	private static int[] heaviest(final int[] ptr, int count) {
+		Integer[] rows = new Integer[ptr.length - 1];
+		for (int r = 0; r < rows.length; r ++)
+			rows[r] = r;
+		Arrays.sort(rows, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return (ptr[b + 1] - ptr[b]) - (ptr[a + 1] - ptr[a]);
+			}
+		});
+		int[] res = new int[Math.max(1, count)];
+		for (int k = 0; k < res.length; k ++)
+			res[k] = rows[k];
+		return res;
+	}
+}
@@ -1,18 +1,27 @@
 package algorithms;
 
+import data_structure.AdjacencyMatrix;
+import data_structure.CSRMatrix;
 import data_structure.Rating;
 import data_structure.SparseMatrix;
 import data_structure.DenseVector;
 import data_structure.DenseMatrix;
+import data_structure.FlatMatrix;
+import data_structure.Kernels;
 import data_structure.Pair;
 import data_structure.SparseVector;
 import happy.coding.math.Randoms;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
 
+import utils.Metrics;
+import utils.ModelSnapshot;
 import utils.Printer;
+import utils.WorkPool;
 
 /**
  * ALS algorithm of the ICDM'09 paper:
@@ -36,13 +45,39 @@ public class MF_ALS extends TopKRecommender {
 	DenseMatrix SU;
 	DenseMatrix SV;
 	
+	// Compressed snapshot of trainMatrix for the sweeps, null after online updates.
+	CSRMatrix trainCSR;
+	// Appendable rows and columns of trainMatrix, created by the first online update.
+	// From then on they hold the ratings, so an event does not touch trainMatrix.
+	AdjacencyMatrix online;
+	
+	// Scratch space of the sequential updates, and per-thread scratch space
+	// of the parallel sweeps (threadNum > 1).
+	Workspace workspace;
+	Workspace[] workspaces;
+	
+	// Number of conjugate gradient steps per row update, warm-started from the current
+	// vector. 0 solves the rows exactly, which costs O(K^3) each.
+	public int cgSteps = 0;
+	
+	// Time of the row solves, of the sweeps and the online updates alike.
+	private static final Metrics.Timer SOLVE_TIMER = Metrics.timer("als_solve");
+	
 	boolean showProgress;
 	boolean showLoss;
 	
 	public MF_ALS(SparseMatrix trainMatrix, ArrayList<Rating> testRatings, 
 			int topK, int threadNum, int factors, int maxIter, double w0, double reg, 
 			double init_mean, double init_stdev, boolean showProgress, boolean showLoss) {
-		super(trainMatrix, testRatings, topK, threadNum);
+		this(new CSRMatrix(trainMatrix), testRatings, topK, threadNum, factors, maxIter, w0, reg, 
+				init_mean, init_stdev, showProgress, showLoss);
+		this.trainMatrix = new SparseMatrix(trainMatrix);
+	}
+	
+	public MF_ALS(CSRMatrix trainRatings, ArrayList<Rating> testRatings, 
+			int topK, int threadNum, int factors, int maxIter, double w0, double reg, 
+			double init_mean, double init_stdev, boolean showProgress, boolean showLoss) {
+		super(trainRatings, testRatings, topK, threadNum);
 		this.factors = factors;
 		this.maxIter = maxIter;
 		this.w0 = w0 / itemCount;
@@ -70,25 +105,37 @@ public class MF_ALS extends TopKRecommender {
 		
 		SU = U.transpose().mult(U);
 		SV = V.transpose().mult(V);
+		workspace = new Workspace();
+		buildCSR();
+	}
+	
+	// The online ratings are kept in online only, not in trainMatrix.
+	@Override
+	protected CSRMatrix trainRatings() {
+		if (trainCSR == null)	buildCSR();
+		return trainCSR;
+	}
+	
+	// Take the compressed snapshot of trainMatrix (or of the online buffers).
+	private void buildCSR() {
+		trainCSR = online != null ? online.toCSR(false) : initialRatings();
 	}
 	
 	// Implement the ALS algorithm of the ICDM'09 paper
 	public void buildModel() {
 		System.out.println("Run for MF_ALS");
+		if (trainCSR == null)	buildCSR();
 		
 		double loss_pre = Double.MAX_VALUE;
-		for (int iter = 0; iter < maxIter; iter ++) {
+		for (int iter = epoch; iter < maxIter; iter ++) {
 			Long start = System.currentTimeMillis();
 			
 			// Update user factors
-			for (int u = 0; u < userCount; u ++) {
-				update_user(u);
-			}
+			updateUsers();
 			
 			// Update item factors
-			for (int i = 0; i < itemCount; i ++) {
-				update_item(i);
-			}
+			updateItems();
+			epoch = iter + 1;
 			
 			// Show progress
 			if (showProgress)
@@ -102,89 +149,213 @@ public class MF_ALS extends TopKRecommender {
 	
 	// Run model for one iteration
 	public void runOneIteration() {
+		if (trainCSR == null)	buildCSR();
 		// Update user latent vectors
-		for (int u = 0; u < userCount; u ++) {
-			update_user(u);
-		}
+		updateUsers();
 		
 		// Update item latent vectors
-		for (int i = 0; i < itemCount; i ++) {
-			update_item(i);
+		updateItems();
+	}
+	
+	// Update all user vectors, sharded over threads when threadNum > 1.
+	private void updateUsers() {
+		if (threadNum <= 1) {
+			for (int u = 0; u < userCount; u ++)
+				update_user(u);
+		} else {
+			parallelSweep(true);
 		}
 	}
 	
-	private void update_user(int u) {
-		ArrayList<Integer> itemList = trainMatrix.getRowRef(u).indexList();
-		// Get matrix Au
-		DenseMatrix Au = SU.scale(w0);
-		for (int k1 = 0; k1 < factors; k1 ++) {
-			for (int k2 = 0; k2 < factors; k2 ++) {
-				for (int i : itemList)
-					Au.add(k1, k2, V.get(i, k1) * V.get(i, k2) * (1 - w0));
+	// Update all item vectors, sharded over threads when threadNum > 1.
+	private void updateItems() {
+		if (threadNum <= 1) {
+			for (int i = 0; i < itemCount; i ++)
+				update_item(i);
+		} else {
+			parallelSweep(false);
+		}
+	}
+	
+	/**
+	 * Update all users (or items) in parallel. Within a half-sweep the rows only read the 
+	 * frozen opposite side and its Gram cache, so shards are independent. Each worker sums 
+	 * the Gram matrix of its own rows and SU (or SV) is reduced from them at the end.
+	 */
+	private void parallelSweep(final boolean isUser) {
+		if (workspaces == null) {
+			workspaces = new Workspace[threadNum];
+			for (int t = 0; t < threadNum; t ++)
+				workspaces[t] = new Workspace();
+		}
+		for (Workspace ws : workspaces)
+			ws.gram.clear();
+		// A row costs a K x K solve plus O(K^2) per rating.
+		int total = isUser ? userCount : itemCount;
+		int[] ptr = isUser ? trainCSR.rowPtr() : trainCSR.colPtr();
+		WorkPool.run(threadNum, total, ptr, factors, new WorkPool.RangeTask() {
+			public void run(int worker, int start, int end) {
+				workspaces[worker].sweep(isUser, start, end);
 			}
-		} 
-		// Get vector du
-		DenseVector du = new DenseVector(factors);
-		for (int k = 0; k < factors; k ++) {
-			for (int i : itemList)
-				du.add(k, V.get(i, k) * trainMatrix.getValue(u, i));
-		}
-		// Matrix inversion to get the new embedding
-		for (int k = 0; k < factors; k ++) { // consider the regularizer
-			Au.add(k, k, reg);
-		}
-		DenseVector newVector = Au.inv().mult(du);
+		});
 		
-		// Update the SU cache
-		for (int f = 0; f < factors; f ++) {
-			for (int k = 0; k <= f; k ++) {
-				double val = SU.get(f, k) - U.get(u, f) * U.get(u, k)
-						+ newVector.get(f) * newVector.get(k);
-				SU.set(f, k, val);
-				SU.set(k, f, val);
-			}
+		// Reduce the lower triangles of the partial Gram matrices.
+		DenseMatrix S = isUser ? SU : SV;
+		S.clear();
+		for (Workspace ws : workspaces)
+			S.selfAdd(ws.gram);
+		for (int f = 0; f < factors; f ++)
+			for (int k = 0; k < f; k ++)
+				S.set(k, f, S.get(f, k));
+	}
+	
+	void update_user(int u) {
+		double[] vector = U.row(u, false).getData();
+		System.arraycopy(vector, 0, workspace.old, 0, factors);
+		if (trainCSR != null) {
+			int[] rowPtr = trainCSR.rowPtr();
+			workspace.solve(V, SV, trainCSR.colIndex(), trainCSR.rowValues(), 
+					rowPtr[u], rowPtr[u + 1], vector);
+		} else {	// Online mode: walk the appendable row.
+			workspace.solve(V, SV, online.rowIndex(u), online.rowValues(u), 
+					0, online.rowSize(u), vector);
 		}
-		// Update parameters
-		for (int k = 0; k < factors; k ++) {
-			U.set(u, k, newVector.get(k));
+		updateGram(SU, workspace.old, vector);
+	}
+	
+	void update_item(int i) {
+		double[] vector = V.row(i, false).getData();
+		System.arraycopy(vector, 0, workspace.old, 0, factors);
+		if (trainCSR != null) {
+			int[] colPtr = trainCSR.colPtr();
+			workspace.solve(U, SU, trainCSR.rowIndex(), trainCSR.colValues(), 
+					colPtr[i], colPtr[i + 1], vector);
+		} else {	// Online mode: walk the appendable column.
+			workspace.solve(U, SU, online.colIndex(i), online.colValues(i), 
+					0, online.colSize(i), vector);
 		}
+		updateGram(SV, workspace.old, vector);
 	}
 	
-	private void update_item(int i) {
-		ArrayList<Integer> userList = trainMatrix.getColRef(i).indexList();
-		// Get matrix Ai
-		DenseMatrix Ai = SV.scale(w0);
-		for (int k1 = 0; k1 < factors; k1 ++) {
-			for (int k2 = 0; k2 < factors; k2 ++) {
-				for (int u : userList)
-					Ai.add(k1, k2, U.get(u, k1) * U.get(u, k2) * (1 - w0));
+	// Replace the outer product of the old vector by the one of the new vector in S.
+	private void updateGram(DenseMatrix S, double[] oldVector, double[] newVector) {
+		for (int f = 0; f < factors; f ++) {
+			double[] row = S.row(f, false).getData();
+			Kernels.axpy(factors, -oldVector[f], oldVector, 0, row, 0);
+			Kernels.axpy(factors, newVector[f], newVector, 0, row, 0);
+		}
+	}
+	
+	// Scratch space of one thread: the K x K system, the old row, and a partial Gram matrix
+	// for the parallel sweeps.
+	private class Workspace {
+		static final int GATHER = 32;
+		double[] A = new double[factors * factors];
+		// Rows of Y gathered for the Gram matrix, GATHER at a time.
+		double[] rows = new double[GATHER * factors];
+		double[] old = new double[factors];
+		DenseMatrix gram = new DenseMatrix(factors, factors);
+		// Residual, search direction and its product with the system, for cgSteps > 0.
+		double[] r = new double[factors], p = new double[factors], Ap = new double[factors];
+		
+		// Update rows [start, end); gram adds the lower triangle of their Gram matrix.
+		void sweep(boolean isUser, int start, int end) {
+			int[] ptr = isUser ? trainCSR.rowPtr() : trainCSR.colPtr();
+			int[] index = isUser ? trainCSR.colIndex() : trainCSR.rowIndex();
+			double[] values = isUser ? trainCSR.rowValues() : trainCSR.colValues();
+			DenseMatrix X = isUser ? U : V, Y = isUser ? V : U;
+			DenseMatrix S = isUser ? SV : SU;
+			for (int r = start; r < end; r ++) {
+				double[] x = X.row(r, false).getData();
+				solve(Y, S, index, values, ptr[r], ptr[r + 1], x);
+				// Accumulate the lower triangle of the Gram matrix
+				for (int f = 0; f < factors; f ++)
+					Kernels.axpy(f + 1, x[f], x, 0, gram.row(f, false).getData(), 0);
 			}
 		}
-		// Get vector di
-		DenseVector di = new DenseVector(factors);
-		for (int k = 0; k < factors; k ++) {
-			for (int u : userList)
-				di.add(k, U.get(u, k) * trainMatrix.getValue(u, i));
+		
+		/**
+		 * Solve the row x against the side Y rated at index[start, end), i.e.
+		 * (w0 * S + (1 - w0) * sum_j y_j y_j^T + reg * I) x = sum_j r_j y_j,
+		 * with S = Y^T Y, the Gram cache of the side x is rated against. The sum is 
+		 * accumulated by Kernels.syrk over the rated rows, or the system approximated by
+		 * conjugate gradient when cgSteps > 0.
+		 * @param x Overwritten by the solution.
+		 */
+		void solve(DenseMatrix Y, DenseMatrix S, int[] index, double[] values, 
+				int start, int end, double[] x) {
+			long time = Metrics.start();
+			if (cgSteps > 0) {
+				conjugateGradient(Y, S, index, values, start, end, x);
+				SOLVE_TIMER.stop(time);
+				return;
+			}
+			Arrays.fill(A, 0);
+			Arrays.fill(x, 0);
+			int count = 0;
+			for (int p = start; p < end; p ++) {
+				double[] y = Y.row(index[p], false).getData();
+				System.arraycopy(y, 0, rows, count * factors, factors);
+				if (++ count == GATHER) {
+					Kernels.syrk(count, factors, rows, 0, null, A, 0);
+					count = 0;
+				}
+				Kernels.axpy(factors, values[p], y, 0, x, 0);
+			}
+			Kernels.syrk(count, factors, rows, 0, null, A, 0);
+			for (int f = 0; f < factors; f ++) {
+				int row = f * factors;
+				for (int k = 0; k <= f; k ++)
+					A[row + k] = w0 * S.get(f, k) + (1 - w0) * A[row + k];
+				A[row + f] += reg;
+			}
+			if (!DenseMatrix.choleskySolve(A, x, factors))
+				throw new RuntimeException("ALS system is not positive definite, check reg and w0");
+			SOLVE_TIMER.stop(time);
 		}
-		// Matrix inversion to get the new embedding
-		for (int k = 0; k < factors; k ++) { // consider the regularizer
-			Ai.add(k, k, reg);
+		
+		/**
+		 * Approximate the solution of the same system by cgSteps conjugate gradient steps
+		 * started from the current x. The system is never formed: each product costs
+		 * O(K^2) with S plus O(K) per rating.
+		 */
+		void conjugateGradient(DenseMatrix Y, DenseMatrix S, int[] index, double[] values, 
+				int start, int end, double[] x) {
+			// r = b - A x, with b = sum_j r_j y_j
+			multiply(Y, S, index, start, end, x, Ap);
+			for (int f = 0; f < factors; f ++)
+				r[f] = -Ap[f];
+			for (int q = start; q < end; q ++)
+				Kernels.axpy(factors, values[q], Y.row(index[q], false).getData(), 0, r, 0);
+			System.arraycopy(r, 0, p, 0, factors);
+			double rr = dot(r, r);
+			for (int step = 0; step < cgSteps && rr > 0; step ++) {
+				multiply(Y, S, index, start, end, p, Ap);
+				double alpha = rr / dot(p, Ap);
+				for (int f = 0; f < factors; f ++) {
+					x[f] += alpha * p[f];
+					r[f] -= alpha * Ap[f];
+				}
+				double rr_new = dot(r, r);
+				for (int f = 0; f < factors; f ++)
+					p[f] = r[f] + rr_new / rr * p[f];
+				rr = rr_new;
+			}
 		}
-		DenseVector newVector = Ai.inv().mult(di);
 		
-		// Update the SV cache
-		for (int f = 0; f < factors; f ++) {
-			for (int k = 0; k <= f; k ++) {
-				double val = SV.get(f, k) - V.get(i, f) * V.get(i, k)
-						+ newVector.get(f) * newVector.get(k);
-				SV.set(f, k, val);
-				SV.set(k, f, val);
+		// out = (w0 * S + (1 - w0) * sum_j y_j y_j^T + reg * I) v
+		private void multiply(DenseMatrix Y, DenseMatrix S, int[] index, int start, int end, 
+				double[] v, double[] out) {
+			for (int f = 0; f < factors; f ++)
+				out[f] = w0 * dot(S.row(f, false).getData(), v) + reg * v[f];
+			for (int q = start; q < end; q ++) {
+				double[] y = Y.row(index[q], false).getData();
+				Kernels.axpy(factors, (1 - w0) * dot(y, v), y, 0, out, 0);
 			}
 		}
 		
-		// Update parameters
-		for (int k = 0; k < factors; k ++) {
-			V.set(i, k, newVector.get(k));
+		private double dot(double[] a, double[] b) {
+			return Kernels.dot(factors, a, 0, b, 0);
 		}
 	}
 	
@@ -212,11 +383,14 @@ public class MF_ALS extends TopKRecommender {
 			}
 		}
 		
+		if (trainCSR == null)	buildCSR();
+		int[] rowPtr = trainCSR.rowPtr(), items = trainCSR.colIndex();
+		double[] ratings = trainCSR.rowValues();
 		double L = reg * (U.squaredSum() + V.squaredSum());
 		for (int u = 0; u < userCount; u ++) {
 			double l = 0;
-			for (int i : trainMatrix.getRowRef(u).indexList()) {
-				l += Math.pow(trainMatrix.getValue(u, i) - predict(u, i), 2);
+			for (int k = rowPtr[u]; k < rowPtr[u + 1]; k ++) {
+				l += Math.pow(ratings[k] - predict(u, items[k]), 2);
 			}
 			l *= (1 - w0);
 			l += w0 * SV.mult(U.row(u, false)).inner(U.row(u, false));
@@ -230,15 +404,61 @@ public class MF_ALS extends TopKRecommender {
 	public double predict(int u, int i) {
 		return U.row(u, false).inner(V.row(i, false));
 	}
+	
+	@Override
+	public void scoreAll(int[] users, double[][] out) {
+		DenseMatrix.rowMultAll(U, users, V, out);
+	}
+	
+	/** @return A copy of U. */
+	@Override
+	public FlatMatrix userFactors() {
+		return FlatMatrix.fromDense(U, false);
+	}
+	
+	/** @return A copy of V. */
+	@Override
+	public FlatMatrix itemFactors() {
+		return FlatMatrix.fromDense(V, false);
+	}
 
+	@Override
+	protected void saveState(ModelSnapshot snapshot) {
+		snapshot.put("U", U);
+		snapshot.put("V", V);
+		snapshot.put("SU", SU);
+		snapshot.put("SV", SV);
+		snapshot.put("R", trainRatings());
+	}
+	
+	@Override
+	protected void loadState(ModelSnapshot snapshot) throws IOException {
+		DenseMatrix U = snapshot.getDense("U");
+		if (U.numColumns() != factors)
+			throw new IOException("Snapshot has " + U.numColumns() + " factors instead of " + factors);
+		this.U = U;
+		V = snapshot.getDense("V");
+		SU = snapshot.getDense("SU");
+		SV = snapshot.getDense("SV");
+		// The ratings, with those added by online updates after training.
+		trainCSR = snapshot.getCSR("R");
+		online = null;
+	}
+	
 	@Override
 	public void updateModel(int u, int i) {
-		trainMatrix.setValue(u, i, 1);
+		if (online == null) {
+			if (trainCSR == null)	buildCSR();
+			online = new AdjacencyMatrix(trainCSR, trainCSR);
+		}
+		online.set(u, i, 1, 1);
+		trainCSR = null;  // the snapshot is stale now
 		
 		for (int iter = 0; iter < maxIterOnline; iter ++) {
 			update_user(u);
 			
 			update_item(i);
 		}
+		if (itemIndex != null)	itemIndex.update(i, V.row(i, false).getData());
 	}
 }
@@ -1,18 +1,24 @@
 package algorithms;
 
+import data_structure.AdjacencyMatrix;
+import data_structure.CSRMatrix;
 import data_structure.Rating;
 import data_structure.SparseMatrix;
-import data_structure.DenseVector;
 import data_structure.DenseMatrix;
+import data_structure.FlatMatrix;
+import data_structure.Kernels;
 import data_structure.Pair;
 import data_structure.SparseVector;
 import happy.coding.math.Randoms;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Random;
 
+import utils.Metrics;
+import utils.ModelSnapshot;
 import utils.Printer;
+import utils.WorkPool;
 
 /**
  * Coordinate descent algorithm of the KDD'15 paper:
@@ -44,16 +50,40 @@ public class MF_CD extends TopKRecommender {
   boolean showProgress;
   boolean showLoss;
   
-  // weight for each positive instance in trainMatrix
-  SparseMatrix W; 
-  
   // weight of new instance in online learning
   public double w_new = 1;
   
+  // Appendable rows and columns of trainMatrix and W, created by the first online update.
+  // From then on they hold the ratings and weights, so an event does not touch trainMatrix.
+  AdjacencyMatrix online;
+  
+  // Compressed snapshots of trainMatrix and W (the weight of each positive instance, 
+  // uniformly 1 until the online updates), or of online, for the row updates, aligned 
+  // by position. Set to null when the online updates add ratings.
+  CSRMatrix trainCSR;
+  CSRMatrix W_CSR;
+  
+  // Rows per block of the parallel sweeps (threadNum > 1), and their workers.
+  public int blockSize = 1024;
+  BlockWorker[] workers;
+  // The worker of update_user and update_item.
+  BlockWorker[] sequential;
+  
+  // Time of the row updates, of the sweeps and the online updates alike.
+  private static final Metrics.Timer UPDATE_TIMER = Metrics.timer("cd_update");
+  
 	public MF_CD(SparseMatrix trainMatrix, ArrayList<Rating> testRatings, 
 			int topK, int threadNum, int factors, int maxIter, double w0, double reg,
 			double init_mean, double init_stdev, boolean showProgress, boolean showLoss) {
-		super(trainMatrix, testRatings, topK, threadNum);
+		this(new CSRMatrix(trainMatrix), testRatings, topK, threadNum, factors, maxIter, w0, reg, 
+				init_mean, init_stdev, showProgress, showLoss);
+		this.trainMatrix = new SparseMatrix(trainMatrix);
+	}
+	
+	public MF_CD(CSRMatrix trainRatings, ArrayList<Rating> testRatings, 
+			int topK, int threadNum, int factors, int maxIter, double w0, double reg,
+			double init_mean, double init_stdev, boolean showProgress, boolean showLoss) {
+		super(trainRatings, testRatings, topK, threadNum);
 		this.factors = factors;
 		this.maxIter = maxIter;
 		this.w0 = w0 / itemCount;
@@ -63,12 +93,27 @@ public class MF_CD extends TopKRecommender {
 		this.showProgress = showProgress;
 		this.showLoss = showLoss;
 		this.initialize();
-		
-		// By default, the weight for positive instance is uniformly 1.
-		W = new SparseMatrix(userCount, itemCount);
-		for (int u = 0; u < userCount; u ++)
-			for (int i : trainMatrix.getRowRef(u).indexList())
-				W.setValue(u, i, 1);
+		buildCSR();
+		sequential = new BlockWorker[] {new BlockWorker()};
+	}
+	
+	// The online ratings are kept in online only, not in trainMatrix.
+	@Override
+	protected CSRMatrix trainRatings() {
+		if (trainCSR == null)	buildCSR();
+		return trainCSR;
+	}
+	
+	// Take the compressed snapshots of trainMatrix and W (or of the online buffers).
+	private void buildCSR() {
+		if (online != null) {
+			trainCSR = online.toCSR(false);
+			W_CSR = online.toCSR(true);
+		} else {
+			// By default, the weight for positive instance is uniformly 1.
+			trainCSR = initialRatings();
+			W_CSR = trainCSR.withValue(1);
+		}
 	}
 	
 	private void initialize() {
@@ -82,11 +127,9 @@ public class MF_CD extends TopKRecommender {
 	}
 	
 	public void setTrain(SparseMatrix trainMatrix) {
-		this.trainMatrix = new SparseMatrix(trainMatrix);
-		W = new SparseMatrix(userCount, itemCount);
-		for (int u = 0; u < userCount; u ++)
-			for (int i : this.trainMatrix.getRowRef(u).indexList())
-				W.setValue(u, i, 1);
+		setTrainMatrix(trainMatrix);
+		online = null;
+		buildCSR();
 	}
 	
 	public void setLSpriors(int LSMaxIter, double Alpha, double Beta) {
@@ -108,22 +151,16 @@ public class MF_CD extends TopKRecommender {
 	 */
 	public void buildModel() {
 		//System.out.println("Run for MF_CD.");
-		
-		ArrayList<Integer> shuffle_list = new ArrayList<Integer>();
-		for (int i = 0; i < itemCount + userCount; i ++)
-			shuffle_list.add(i);
+		if (trainCSR == null)	buildCSR();
 		
 		double loss_pre = Double.MAX_VALUE;
-		for (int iter = 0; iter < maxIter; iter ++) {
+		for (int iter = epoch; iter < maxIter; iter ++) {
 			Long start = System.currentTimeMillis();
-			Collections.shuffle(shuffle_list);
-			
-			for (int index : shuffle_list) {				
-				if (index >= userCount)  // for an item
-					update_item(index - userCount);
-				else   // for a user
-					update_user(index);
-			}
+			if (threadNum > 1)
+				parallelSweep();
+			else
+				sequentialSweep();
+			epoch = iter + 1;
 			
 			// Show progress
 			if (showProgress)
@@ -137,12 +174,16 @@ public class MF_CD extends TopKRecommender {
 	
 	// Run model for one iteration
 	public void runOneIteration() {
-		ArrayList<Integer> shuffle_list = new ArrayList<Integer>();
-		for (int i = 0; i < itemCount + userCount; i ++)
-			shuffle_list.add(i);
-		Collections.shuffle(shuffle_list);
-		
-		for (int index : shuffle_list) {				
+		if (trainCSR == null)	buildCSR();
+		if (threadNum > 1)
+			parallelSweep();
+		else
+			sequentialSweep();
+	}
+	
+	// One epoch on one thread: users and items are updated one by one in a shuffled order.
+	private void sequentialSweep() {
+		for (int index : shuffledRange(userCount + itemCount)) {
 			if (index >= userCount)  // for an item
 				update_item(index - userCount);
 			else   // for a user
@@ -150,113 +191,193 @@ public class MF_CD extends TopKRecommender {
 		}
 	}
 	
-	// Line search (book, Convex Optimization) for the best step size.
-	private double linesearch(int index, DenseVector embedding, 
-			DenseVector gradient, int LSMaxIter, double Alpha, double Beta) {
-		double step_size = 1.0;
-		double init_error = error_row(index, embedding);
-		
-		for (int iter = 0; iter < LSMaxIter; iter ++) {
-			// Build new features (ie embedding) with current step size
-			DenseVector newEmbedding = embedding.minus(gradient.scale(step_size));
-			
-			// Check if new features are good enough. If not reduce step size
-			double new_error = error_row(index, newEmbedding);
-			if (new_error > init_error - Alpha * step_size * gradient.squaredSum())
-				step_size *= Beta;
-			else
-				break;
-			
-			// Too many iterations, return step_size = 0
-			if (iter == LSMaxIter - 1) {
-				step_size = 0;
-				break;
-			}
-		}	
-		return step_size;
+	/**
+	 * One epoch on threadNum threads: users and items are shuffled and updated in alternating
+	 * blocks of blockSize rows. Within a user block the rows only read V and SV, which stay
+	 * fixed, so they are independent (the same for items). The workers sum the changes of SU
+	 * (or SV) in their own buffers, which are merged into the cache at the end of the block.
+	 */
+	private void parallelSweep() {
+		if (workers == null) {
+			workers = new BlockWorker[threadNum];
+			for (int t = 0; t < threadNum; t ++)
+				workers[t] = new BlockWorker();
+		}
+		int[] users = shuffledRange(userCount), items = shuffledRange(itemCount);
+		for (int from = 0; from < Math.max(userCount, itemCount); from += blockSize) {
+			if (from < userCount)
+				runBlock(true, users, from, Math.min(userCount, from + blockSize));
+			if (from < itemCount)
+				runBlock(false, items, from, Math.min(itemCount, from + blockSize));
+		}
 	}
 	
-	private double error_row(int index, DenseVector embedding) {
-		double err = 0;
-		if (index >= userCount) {  // for an item
-			int i = index - userCount;
-			for (int u : trainMatrix.getColRef(i).indexList()) {
-				double prediction = U.row(u, false).inner(embedding);
-				err += W.getValue(u, i) * Math.pow(trainMatrix.getValue(u, i) - prediction, 2);
-			}
-			err *= (1 - w0);
-			err += w0 * SU.mult(embedding).inner(embedding);
-			err += reg * embedding.squaredSum();
-			
-		} else {  // for a user
-			int u = index;
-			for (int i : trainMatrix.getRowRef(u).indexList()) {
-				double prediction = V.row(i, false).inner(embedding);
-				err += W.getValue(u, i) * Math.pow(trainMatrix.getValue(u, i) - prediction, 2);
-			}
-			err *= (1 - w0);
-			err += w0 * SV.mult(embedding).inner(embedding);
-			err += reg * embedding.squaredSum();
+	private static int[] shuffledRange(int n) {
+		int[] order = new int[n];
+		for (int k = 0; k < n; k ++)
+			order[k] = k;
+		Random rand = new Random();
+		for (int k = n - 1; k > 0; k --) {
+			int j = rand.nextInt(k + 1);
+			int tmp = order[k];
+			order[k] = order[j];
+			order[j] = tmp;
 		}
-		return err;
+		return order;
 	}
 	
-	private void update_user(int u) {
-		DenseVector embedding = U.row(u, false);
-		// Calculate the gradient
-		DenseVector gradient = SV.mult(embedding).scale(w0);
-		for (int i : trainMatrix.getRowRef(u).indexList()) {
-			double mul = W.getValue(u, i) * (predict(u, i) * (1 - w0) - trainMatrix.getValue(u, i));
-			gradient.selfAdd(V.row(i, false).scale(mul));
+	// Update rows[from, to) of U (or V) in parallel, then merge the Gram deltas into SU (SV).
+	// A row costs O(K^2) plus O(K) per rating.
+	private void runBlock(final boolean isUser, final int[] rows, final int from, int to) {
+		if (trainCSR != null) {
+			int[] ptr = isUser ? trainCSR.rowPtr() : trainCSR.colPtr();
+			WorkPool.run(threadNum, rows, from, to, ptr, factors, new WorkPool.RangeTask() {
+				public void run(int worker, int start, int end) {
+					workers[worker].run(isUser, rows, start, end);
+				}
+			});
+		} else {
+			long[] costs = new long[to - from];
+			for (int n = from; n < to; n ++)
+				costs[n - from] = factors + (isUser ? online.rowSize(rows[n]) : online.colSize(rows[n]));
+			WorkPool.run(threadNum, costs, new WorkPool.RangeTask() {
+				public void run(int worker, int start, int end) {
+					workers[worker].run(isUser, rows, from + start, from + end);
+				}
+			});
 		}
-		gradient.selfAdd(embedding.scale(reg));  // with regularizer
 		
-		// Line search for learning rate
-		double lr = linesearch(u, embedding, gradient, LSMaxIter, Alpha, Beta);
-		
-		// Update S cache before updating parameters
-		DenseVector new_embedding = embedding.minus(gradient.scale(lr));
+		addDelta(isUser ? SU : SV, workers);
+	}
+	
+	// Add the Gram changes (lower triangles) summed by the workers to S, and clear them.
+	private void addDelta(DenseMatrix S, BlockWorker[] workers) {
 		for (int f = 0; f < factors; f ++) {
 			for (int k = 0; k <= f; k ++) {
-				double val = SU.get(f, k) - embedding.get(f) * embedding.get(k)
-						+ new_embedding.get(f) * new_embedding.get(k);
-				SU.set(f, k, val);
-				SU.set(k, f, val);
+				double delta = 0;
+				for (BlockWorker worker : workers) {
+					delta += worker.delta[f * factors + k];
+					worker.delta[f * factors + k] = 0;
+				}
+				S.add(f, k, delta);
+				if (k != f)	S.add(k, f, delta);
 			}
 		}
-		
-		// Parameter update
-		for (int f = 0; f < factors; f ++)
-			embedding.set(f, new_embedding.get(f));
 	}
 	
-	private void update_item(int i) {
-		DenseVector embedding = V.row(i, false);
-		// Calculate the gradient
-		DenseVector gradient = SU.mult(embedding).scale(w0);
-		for (int u : trainMatrix.getColRef(i).indexList()) {
-			double mul = W.getValue(u, i) * (predict(u, i) * (1 - w0) - trainMatrix.getValue(u, i));
-			gradient.selfAdd(U.row(u, false).scale(mul));
+	/**
+	 * Scratch space and Gram delta of one thread, for update_user/update_item, the parallel
+	 * sweeps and the online batches. The row update is a gradient step with line search on
+	 * plain arrays.
+	 */
+	private class BlockWorker {
+		double[] gradient = new double[factors];
+		double[] trial = new double[factors];
+		double[] delta = new double[factors * factors];	// lower triangle, zero between blocks
+		
+		// Update rows[start, end); delta adds the change of their Gram matrix.
+		void run(boolean isUser, int[] rows, int start, int end) {
+			for (int n = start; n < end; n ++)
+				update(isUser, rows[n]);
 		}
-		gradient.selfAdd(embedding.scale(reg));  // with regularizer
 		
-		// Line search for learning rate
-		double lr = linesearch(userCount + i, embedding, gradient, LSMaxIter, Alpha, Beta);
+		// Update row r of U (or V) from the snapshots, or from the online buffers when they
+		// are stale; delta adds the change of its Gram matrix.
+		void update(boolean isUser, int r) {
+			long time = Metrics.start();
+			double[] x = (isUser ? U : V).row(r, false).getData();
+			DenseMatrix Y = isUser ? V : U;
+			DenseMatrix SY = isUser ? SV : SU;
+			if (trainCSR == null) {
+				if (isUser)
+					update(x, Y, SY, online.rowIndex(r), online.rowValues(r), online.rowWeights(r), 
+							0, online.rowSize(r));
+				else
+					update(x, Y, SY, online.colIndex(r), online.colValues(r), online.colWeights(r), 
+							0, online.colSize(r));
+				UPDATE_TIMER.stop(time);
+				return;
+			}
+			int[] ptr = isUser ? trainCSR.rowPtr() : trainCSR.colPtr();
+			int[] index = isUser ? trainCSR.colIndex() : trainCSR.rowIndex();
+			double[] ratings = isUser ? trainCSR.rowValues() : trainCSR.colValues();
+			double[] weights = isUser ? W_CSR.rowValues() : W_CSR.colValues();
+			update(x, Y, SY, index, ratings, weights, ptr[r], ptr[r + 1]);
+			UPDATE_TIMER.stop(time);
+		}
 		
-		// Update SV cache
-		DenseVector new_embedding = embedding.minus(gradient.scale(lr));
-		for (int f = 0; f < factors; f ++) {
-			for (int k = 0; k <= f; k ++) {
-				double val = SV.get(f, k) - embedding.get(f) * embedding.get(k)
-						+ new_embedding.get(f) * new_embedding.get(k);
-				SV.set(f, k, val);
-				SV.set(k, f, val);
+		// Gradient step with line search on the row x, rated by Y at index[start, end).
+		private void update(double[] x, DenseMatrix Y, DenseMatrix SY, int[] index, 
+				double[] ratings, double[] weights, int start, int end) {
+			// Calculate the gradient
+			for (int f = 0; f < factors; f ++)
+				gradient[f] = w0 * dot(SY.row(f, false).getData(), x) + reg * x[f];
+			for (int p = start; p < end; p ++) {
+				double[] y = Y.row(index[p], false).getData();
+				Kernels.axpy(factors, weights[p] * (dot(y, x) * (1 - w0) - ratings[p]), y, 0, gradient, 0);
+			}
+			
+			// Line search for learning rate
+			double gg = dot(gradient, gradient);
+			double init_error = error(x, Y, SY, index, ratings, weights, start, end);
+			double step_size = 1.0;
+			for (int iter = 0; iter < LSMaxIter; iter ++) {
+				for (int f = 0; f < factors; f ++)
+					trial[f] = x[f] - step_size * gradient[f];
+				double new_error = error(trial, Y, SY, index, ratings, weights, start, end);
+				if (new_error > init_error - Alpha * step_size * gg)
+					step_size *= Beta;
+				else
+					break;
+				if (iter == LSMaxIter - 1) {
+					step_size = 0;
+					break;
+				}
+			}
+			if (step_size == 0)	return;
+			
+			// Gram delta (lower triangle) before updating parameters
+			System.arraycopy(x, 0, trial, 0, factors);
+			Kernels.axpy(factors, -step_size, gradient, 0, trial, 0);
+			for (int f = 0; f < factors; f ++) {
+				Kernels.axpy(f + 1, trial[f], trial, 0, delta, f * factors);
+				Kernels.axpy(f + 1, -x[f], x, 0, delta, f * factors);
+			}
+			System.arraycopy(trial, 0, x, 0, factors);
+		}
+		
+		// The loss of the row for the vector x, the objective of the line search.
+		private double error(double[] x, DenseMatrix Y, DenseMatrix SY, int[] index, 
+				double[] ratings, double[] weights, int start, int end) {
+			double err = 0;
+			for (int p = start; p < end; p ++) {
+				double diff = ratings[p] - dot(Y.row(index[p], false).getData(), x);
+				err += weights[p] * diff * diff;
 			}
+			err *= (1 - w0);
+			double quad = 0;
+			for (int f = 0; f < factors; f ++)
+				quad += x[f] * dot(SY.row(f, false).getData(), x);
+			return err + w0 * quad + reg * dot(x, x);
 		}
 		
-		// Parameter update
-		for (int f = 0; f < factors; f ++)
-			embedding.set(f, new_embedding.get(f));
+		private double dot(double[] a, double[] b) {
+			return Kernels.dot(factors, a, 0, b, 0);
+		}
+	}
+	
+	void update_user(int u) {
+		updateRow(true, u);
+	}
+	
+	void update_item(int i) {
+		updateRow(false, i);
+	}
+	
+	// One step on row r, with its Gram change added to SU (or SV) right away.
+	private void updateRow(boolean isUser, int r) {
+		sequential[0].update(isUser, r);
+		addDelta(isUser ? SU : SV, sequential);
 	}
 	
 	public double showLoss(int iter, long start, double loss_pre) {
@@ -271,14 +392,22 @@ public class MF_CD extends TopKRecommender {
 	
 	// Fast way to calculate the loss function
 	public double loss() {
+		if (trainCSR == null)	buildCSR();
+		int[] rowPtr = trainCSR.rowPtr(), items = trainCSR.colIndex();
+		double[] ratings = trainCSR.rowValues(), weights = W_CSR.rowValues();
 		double L = reg * (U.squaredSum() + V.squaredSum());
 		for (int u = 0; u < userCount; u ++) {
+			double[] x = U.row(u, false).getData();
 			double l = 0;
-			for (int i : trainMatrix.getRowRef(u).indexList()) {
-				l +=  W.getValue(u, i) * Math.pow(trainMatrix.getValue(u, i) - predict(u, i), 2);
+			for (int k = rowPtr[u]; k < rowPtr[u + 1]; k ++) {
+				double diff = ratings[k] - Kernels.dot(factors, x, 0, V.row(items[k], false).getData(), 0);
+				l += weights[k] * diff * diff;
 			}
 			l *= (1 - w0);
-			l += w0 * SV.mult(U.row(u, false)).inner(U.row(u, false));
+			double quad = 0;
+			for (int f = 0; f < factors; f ++)
+				quad += x[f] * Kernels.dot(factors, SV.row(f, false).getData(), 0, x, 0);
+			l += w0 * quad;
 			L += l;
 		}
 		
@@ -289,15 +418,94 @@ public class MF_CD extends TopKRecommender {
 	public double predict(int u, int i) {
 		return U.row(u, false).inner(V.row(i, false));
 	}
+	
+	@Override
+	public void scoreAll(int[] users, double[][] out) {
+		DenseMatrix.rowMultAll(U, users, V, out);
+	}
+	
+	/** @return A copy of U. */
+	@Override
+	public FlatMatrix userFactors() {
+		return FlatMatrix.fromDense(U, false);
+	}
+	
+	/** @return A copy of V. */
+	@Override
+	public FlatMatrix itemFactors() {
+		return FlatMatrix.fromDense(V, false);
+	}
 
+	@Override
+	protected void saveState(ModelSnapshot snapshot) {
+		snapshot.put("U", U);
+		snapshot.put("V", V);
+		snapshot.put("SU", SU);
+		snapshot.put("SV", SV);
+		if (trainCSR == null)	buildCSR();
+		snapshot.put("R", trainCSR);
+		snapshot.put("W", W_CSR);
+	}
+	
+	@Override
+	protected void loadState(ModelSnapshot snapshot) throws IOException {
+		DenseMatrix U = snapshot.getDense("U");
+		if (U.numColumns() != factors)
+			throw new IOException("Snapshot has " + U.numColumns() + " factors instead of " + factors);
+		this.U = U;
+		V = snapshot.getDense("V");
+		SU = snapshot.getDense("SU");
+		SV = snapshot.getDense("SV");
+		// The ratings and weights, with those added by online updates after training.
+		trainCSR = snapshot.getCSR("R");
+		W_CSR = snapshot.getCSR("W");
+		online = null;
+	}
+	
 	@Override
 	public void updateModel(int u, int i) {
-		trainMatrix.setValue(u, i, 1);
-		W.setValue(u, i, w_new);
+		addRating(u, i);
 		
 		for (int iter = 0; iter < maxIterOnline; iter ++) {
 			update_user(u);
 			update_item(i);
 		}
+		if (itemIndex != null)	itemIndex.update(i, V.row(i, false).getData());
+	}
+	
+	/**
+	 * Mini-batch online update. The events are added first, then each distinct user of the
+	 * batch takes one step, in parallel against the frozen V and SV, and SU is patched once
+	 * with the summed changes; then the same for the distinct items.
+	 */
+	@Override
+	public void updateModel(int[] users, int[] items) {
+		for (int k = 0; k < users.length; k ++)
+			addRating(users[k], items[k]);
+		int[] batchUsers = distinct(users), batchItems = distinct(items);
+		if (workers == null) {
+			workers = new BlockWorker[threadNum];
+			for (int t = 0; t < threadNum; t ++)
+				workers[t] = new BlockWorker();
+		}
+		
+		for (int iter = 0; iter < maxIterOnline; iter ++) {
+			runBlock(true, batchUsers, 0, batchUsers.length);
+			runBlock(false, batchItems, 0, batchItems.length);
+		}
+		if (itemIndex != null) {
+			for (int i : batchItems)
+				itemIndex.update(i, V.row(i, false).getData());
+		}
+	}
+	
+	// Add the rating (u, i) of an online update, switching to the appendable matrix first.
+	private void addRating(int u, int i) {
+		if (online == null) {
+			if (trainCSR == null)	buildCSR();
+			online = new AdjacencyMatrix(trainCSR, W_CSR);
+		}
+		online.set(u, i, 1, w_new);
+		trainCSR = W_CSR = null;  // the snapshots are stale now
 	}
 }
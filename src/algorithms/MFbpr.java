@@ -1,16 +1,24 @@
 package algorithms;
 
+import data_structure.AdjacencyMatrix;
+import data_structure.CSRMatrix;
 import data_structure.Rating;
 import data_structure.SparseMatrix;
 import data_structure.DenseVector;
 import data_structure.DenseMatrix;
+import data_structure.FlatMatrix;
+import data_structure.Kernels;
 import data_structure.Pair;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Random;
+import java.util.SplittableRandom;
 
+import utils.Metrics;
+import utils.ModelSnapshot;
+import utils.NegativeSampler;
 import utils.Printer;
+import utils.WorkPool;
 
 /**
  * Implement the standard matrix factorization model, optimized by BPR loss.
@@ -41,11 +49,38 @@ public class MFbpr extends TopKRecommender {
   boolean showProgress;
   public String onlineMode = "u";
   
-  Random rand = new Random();
+  // Random generator, candidates and the shuffled items of the user of the online SGD steps.
+  SplittableRandom onlineRand = new SplittableRandom();
+  int[] onlineCandidates;
+  int[] onlineItems = new int[0];
+  
+  // Negative items are drawn uniformly or by popularity ^ samplingAlpha (NegativeSampler modes).
+  public int samplingMode = NegativeSampler.UNIFORM;
+  public double samplingAlpha = 0.75;
+  
+  // Compressed snapshot of trainMatrix (or of online), null after online updates.
+  CSRMatrix trainCSR;
+  // Appendable rows and columns of trainMatrix, created by the first online update.
+  // From then on they hold the ratings, so an event does not touch trainMatrix.
+  AdjacencyMatrix online;
+  // Sampler of the negatives of the ratings; the online updates add their ratings to it.
+  NegativeSampler sampler;
+  
+  // Time of the SGD steps, negative sampling included, of the epochs and the online updates.
+  private static final Metrics.Timer STEP_TIMER = Metrics.timer("bpr_update_ui");
+  
 	public MFbpr(SparseMatrix trainMatrix, ArrayList<Rating> testRatings,
 			int topK, int threadNum, int factors, int maxIter, double lr, boolean adaptive, double reg, 
 			double init_mean, double init_stdev, int num_dns, boolean showProgress) {
-		super(trainMatrix, testRatings, topK, threadNum);
+		this(new CSRMatrix(trainMatrix), testRatings, topK, threadNum, factors, maxIter, lr, adaptive, 
+				reg, init_mean, init_stdev, num_dns, showProgress);
+		this.trainMatrix = new SparseMatrix(trainMatrix);
+	}
+	
+	public MFbpr(CSRMatrix trainRatings, ArrayList<Rating> testRatings,
+			int topK, int threadNum, int factors, int maxIter, double lr, boolean adaptive, double reg, 
+			double init_mean, double init_stdev, int num_dns, boolean showProgress) {
+		super(trainRatings, testRatings, topK, threadNum);
 		this.factors = factors;
 		this.maxIter = maxIter;
 		this.lr = lr;
@@ -70,24 +105,13 @@ public class MFbpr extends TopKRecommender {
 	}
 	
 	public void buildModel() {	
-		int nonzeros = trainMatrix.itemCount();
 		double hr_prev = 0;
-		for (int iter = 0; iter < maxIter; iter ++) {
+		for (int iter = epoch; iter < maxIter; iter ++) {
 			Long start = System.currentTimeMillis();
-			rand = new Random();
 			
 			// Each training epoch
-			for (int s = 0; s < nonzeros; s ++) { 
-				// sample a user
-				int u = rand.nextInt(userCount); 
-				ArrayList<Integer> itemList = trainMatrix.getRowRef(u).indexList();
-				if (itemList.size() == 0)	continue;
-				// sample a positive item
-				int i = itemList.get(rand.nextInt(itemList.size())); 
-				
-				// One SGD step update
-				update_ui(u, i);
-			}
+			runEpoch();
+			epoch = iter + 1;
 		
 			// Show progress per 10 epochs
 			if (showProgress && iter%10 == 0)
@@ -104,55 +128,100 @@ public class MFbpr extends TopKRecommender {
 	}
 	
 	public void runOneIteration() {
-		int nonzeros = trainMatrix.itemCount();
-		rand = new Random();
-		// Each training epoch
-		for (int s = 0; s < nonzeros; s ++) { 
+		runEpoch();
+	}
+	
+	/**
+	 * One training epoch of nonzeros SGD steps. With threadNum > 1 the steps are split over
+	 * threads that update U and V without locks (Hogwild): concurrent steps rarely touch the
+	 * same rows, and a lost update only costs a bit of progress.
+	 */
+	private void runEpoch() {
+		if (trainCSR == null || sampler == null) {
+			trainCSR = trainRatings();
+			sampler = new NegativeSampler(trainCSR, samplingMode, samplingAlpha);
+		}
+		int nonzeros = trainCSR.itemCount();
+		SplittableRandom rand = new SplittableRandom();
+		if (threadNum <= 1) {
+			sgd(nonzeros, rand);
+			return;
+		}
+		// The steps cost the same, chunks of them go to the threads of the shared pool.
+		final SplittableRandom[] rands = new SplittableRandom[threadNum];
+		for (int t = 0; t < threadNum; t ++)
+			rands[t] = rand.split();
+		WorkPool.run(threadNum, nonzeros, null, 1, new WorkPool.RangeTask() {
+			public void run(int worker, int start, int end) {
+				sgd(end - start, rands[worker]);
+			}
+		});
+	}
+	
+	// SGD steps on (user, positive item) samples drawn from the rows of trainCSR.
+	private void sgd(int samples, SplittableRandom rand) {
+		int[] rowPtr = trainCSR.rowPtr(), items = trainCSR.colIndex();
+		int[] candidates = new int[Math.max(1, (int) num_dns)];
+		for (int s = 0; s < samples; s ++) {
 			// sample a user
-			int u = rand.nextInt(userCount); 
-			ArrayList<Integer> itemList = trainMatrix.getRowRef(u).indexList();
-			if (itemList.size() == 0)	continue;
+			int u = rand.nextInt(userCount);
+			int size = rowPtr[u + 1] - rowPtr[u];
+			if (size == 0)	continue;
 			// sample a positive item
-			int i = itemList.get(rand.nextInt(itemList.size())); 
+			int i = items[rowPtr[u] + rand.nextInt(size)];
 			
 			// One SGD step update
-			update_ui(u, i);
+			update_ui(u, i, candidates, rand);
 		}
 	}
 	
-	//One SGD step for a positive instance.
-	private void update_ui(int u, int i) {
-		// Dynamic negative sampling		
-		// sample a negative item
-		int s = rand.nextInt(itemCount);
-		while (trainMatrix.getValue(u, s) != 0) {
-			s = rand.nextInt(itemCount);
-		}
-		int j = s;	// record the negative example with the largest predict value
-		for (int k = 1; k < this.num_dns; k ++) {
-			// sample another negative item
-			s = rand.nextInt(itemCount);
-			while (trainMatrix.getValue(u, s) != 0) {
-				s = rand.nextInt(itemCount);
-			}
-			if (predict(u, s) > predict(u, j)) {
-				j = s;
-			}
-		}
+	/**
+	 * One SGD step for a positive instance on the row arrays, with the negative drawn by the
+	 * sampler among candidates.length items. Returns the negative item.
+	 */
+	private int update_ui(int u, int i, int[] candidates, SplittableRandom rand) {
+		long time = Metrics.start();
+		double[] pu = U.row(u, false).getData();
+		// Dynamic negative sampling
+		int j = candidates.length == 1 ? sampler.sample(u, rand) 
+				: sampler.sample(u, pu, V, candidates, rand);
 		
 		// BPR update rules
-		double y_pos = predict(u, i);  // target value of positive instance
-    double y_neg = predict(u, j);  // target value of negative instance
-    double mult = -partial_loss(y_pos - y_neg);
-    
-    for (int f = 0; f < factors; f ++) {
-    	double grad_u = V.get(i, f) - V.get(j, f);
-    	U.add(u, f, -lr * (mult * grad_u + reg * U.get(u, f)));
-    	
-    	double grad = U.get(u, f);
-    	V.add(i, f, -lr * (mult * grad + reg * V.get(i, f)));
-    	V.add(j, f, -lr * (-mult * grad + reg * V.get(j, f)));
-    }
+		double[] qi = V.row(i, false).getData(), qj = V.row(j, false).getData();
+		double y_pos = Kernels.dot(factors, pu, 0, qi, 0);
+		double y_neg = Kernels.dot(factors, pu, 0, qj, 0);
+		double mult = -partial_loss(y_pos - y_neg);
+		double decay = 1 - lr * reg;
+		// pu -= lr * (mult * (qi - qj) + reg * pu), then the items step along the new pu.
+		Kernels.axpby(factors, -lr * mult, qi, 0, decay, pu, 0);
+		Kernels.axpy(factors, lr * mult, qj, 0, pu, 0);
+		Kernels.axpby(factors, -lr * mult, pu, 0, decay, qi, 0);
+		Kernels.axpby(factors, lr * mult, pu, 0, decay, qj, 0);
+		STEP_TIMER.stop(time);
+		return j;
+	}
+	
+	//One SGD step for a positive instance of the online updates. Returns the negative item.
+	int update_ui(int u, int i) {
+		onlineSampler();
+		int dns = Math.max(1, (int) num_dns);
+		if (onlineCandidates == null || onlineCandidates.length != dns)
+			onlineCandidates = new int[dns];
+		return update_ui(u, i, onlineCandidates, onlineRand);
+	}
+	
+	// The sampler of the online updates, built from the ratings by the first one.
+	private NegativeSampler onlineSampler() {
+		if (sampler == null)
+			sampler = new NegativeSampler(trainRatings(), samplingMode, samplingAlpha);
+		return sampler;
+	}
+	
+	// The online ratings are kept in online only, not in trainMatrix.
+	@Override
+	protected CSRMatrix trainRatings() {
+		if (trainCSR != null)	return trainCSR;
+		return online != null ? online.toCSR(false) : initialRatings();
 	}
 	
 	@Override
@@ -160,6 +229,45 @@ public class MFbpr extends TopKRecommender {
 		return U.row(u, false).inner(V.row(i, false));
 	}
 	
+	@Override
+	public void scoreAll(int[] users, double[][] out) {
+		DenseMatrix.rowMultAll(U, users, V, out);
+	}
+	
+	/** @return A copy of U. */
+	@Override
+	public FlatMatrix userFactors() {
+		return FlatMatrix.fromDense(U, false);
+	}
+	
+	/** @return A copy of V. */
+	@Override
+	public FlatMatrix itemFactors() {
+		return FlatMatrix.fromDense(V, false);
+	}
+	
+	@Override
+	protected void saveState(ModelSnapshot snapshot) {
+		snapshot.put("U", U);
+		snapshot.put("V", V);
+		snapshot.put("lr", new double[] {lr});
+		snapshot.put("R", trainRatings());
+	}
+	
+	@Override
+	protected void loadState(ModelSnapshot snapshot) throws IOException {
+		DenseMatrix U = snapshot.getDense("U");
+		if (U.numColumns() != factors)
+			throw new IOException("Snapshot has " + U.numColumns() + " factors instead of " + factors);
+		this.U = U;
+		V = snapshot.getDense("V");
+		lr = snapshot.getDoubles("lr")[0];
+		// The ratings, with those added by online updates after training.
+		trainCSR = snapshot.getCSR("R");
+		online = null;
+		sampler = null;
+	}
+	
   // Partial of the ln sigmoid function used by BPR.
   private double partial_loss(double x) {
     double exp_x = Math.exp(-x);
@@ -169,19 +277,35 @@ public class MFbpr extends TopKRecommender {
   // Implement the Recsys08 method: Steffen Rendle, Lars Schmidt-Thieme,
   // "Online-Updating Regularized Kernel Matrix Factorization Models"
 	public void updateModel(int u, int item) {
-		trainMatrix.setValue(u, item, 1);
-		rand = new Random();
+		onlineSampler().add(u, item);
+		if (online == null) {
+			CSRMatrix R = trainRatings();
+			online = new AdjacencyMatrix(R, R);
+		}
+		online.set(u, item, 1, 1);
+		trainCSR = null;  // the snapshot is stale now
 		
 		// user retrain
-		ArrayList<Integer> itemList = trainMatrix.getRowRef(u).indexList();
+		int size = online.rowSize(u);
+		if (onlineItems.length < size)	onlineItems = new int[size + (size >> 1)];
+		System.arraycopy(online.rowIndex(u), 0, onlineItems, 0, size);
 		for (int iter = 0; iter < maxIterOnline; iter ++) {
-			Collections.shuffle(itemList);
+			for (int k = size - 1; k > 0; k --) {
+				int r = onlineRand.nextInt(k + 1);
+				int tmp = onlineItems[k];
+				onlineItems[k] = onlineItems[r];
+				onlineItems[r] = tmp;
+			}
 			
-			for (int s = 0; s < itemList.size(); s ++) {
+			for (int s = 0; s < size; s ++) {
 				// retrain for the user or for the (user, item) pair
-				int i = onlineMode.equalsIgnoreCase("u") ? itemList.get(s) : item;
+				int i = onlineMode.equalsIgnoreCase("u") ? onlineItems[s] : item;
 				// One SGD step update
-				update_ui(u, i);
+				int j = update_ui(u, i);
+				if (itemIndex != null) {
+					itemIndex.update(i, V.row(i, false).getData());
+					itemIndex.update(j, V.row(j, false).getData());
+				}
 			}
 		}
 		
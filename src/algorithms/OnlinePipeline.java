@@ -0,0 +1,121 @@
+package algorithms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import data_structure.Rating;
+import utils.TopKHeap;
+
+/**
+ * Applies a stream of new interactions to a MF_fastALS model on one writer thread,
+ * while any number of other threads keep serving recommendations from the same model.
+ *
+ * Events go through a bounded queue, so producers block when the writer falls behind.
+ * There is a single writer because every update also patches the shared SU/SV caches.
+ * Readers score with {@link MF_fastALS#scoreConsistent}, so they never see a half-updated
+ * vector and never make the writer wait.
+ */
+public class OnlinePipeline {
+	private final MF_fastALS model;
+	private final ArrayBlockingQueue<Rating> queue;
+	private final Thread writer;
+	private final AtomicLong applied = new AtomicLong();
+	private volatile boolean closed;
+	private volatile Throwable failure;
+
+	// Scratch space of each reader thread.
+	private final ThreadLocal<ReadBuffer> readBuffer = new ThreadLocal<ReadBuffer>() {
+		protected ReadBuffer initialValue() {
+			return new ReadBuffer();
+		}
+	};
+
+	/**
+	 * Start the writer thread.
+	 * @param capacity Maximum number of pending events.
+	 */
+	public OnlinePipeline(MF_fastALS model, int capacity) {
+		this.model = model;
+		this.queue = new ArrayBlockingQueue<Rating>(capacity);
+		model.setConcurrentReads(true);
+		writer = new Thread(new Runnable() {
+			public void run() {
+				applyEvents();
+			}
+		}, "online-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void applyEvents() {
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Rating rating = queue.poll(10, TimeUnit.MILLISECONDS);
+				if (rating == null)	continue;
+				model.updateModel(rating.userId, rating.itemId);
+				applied.incrementAndGet();
+			}
+		} catch (Throwable e) {
+			failure = e;
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Queue the interaction of user u with item i, waiting if the queue is full.
+	 */
+	public void submit(int u, int i) throws InterruptedException {
+		if (closed)
+			throw new IllegalStateException("The pipeline is closed");
+		if (failure != null)
+			throw new RuntimeException("Online update failed: " + failure.getMessage(), failure);
+		queue.put(new Rating(u, i, 1, 0));
+	}
+
+	/** @return the number of events applied to the model so far. */
+	public long applied() {
+		return applied.get();
+	}
+
+	/** @return the number of events waiting in the queue. */
+	public int pending() {
+		return queue.size();
+	}
+
+	/**
+	 * Top k items for user u by the current model. Can be called from any thread.
+	 * @param items Filled with the items, best first.
+	 * @return the number of items written (k, or itemCount if smaller).
+	 */
+	public int recommend(int u, int k, int[] items) {
+		ReadBuffer buffer = readBuffer.get();
+		model.scoreConsistent(u, buffer.uvec, buffer.scores);
+		if (buffer.heap == null || buffer.heap.capacity() != k)
+			buffer.heap = new TopKHeap(k);
+		TopKHeap heap = buffer.heap;
+		heap.clear();
+		for (int i = 0; i < model.itemCount; i ++)
+			heap.add(i, buffer.scores[i]);
+		int size = heap.sortDescending();
+		for (int r = 0; r < size; r ++)
+			items[r] = heap.id(r);
+		return size;
+	}
+
+	/**
+	 * Apply the queued events, then stop the writer. Readers may keep calling recommend.
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		writer.join();
+		if (failure != null)
+			throw new RuntimeException("Online update failed: " + failure.getMessage(), failure);
+	}
+
+	private class ReadBuffer {
+		double[] uvec = new double[model.factors];
+		double[] scores = new double[model.itemCount];
+		TopKHeap heap;
+	}
+}
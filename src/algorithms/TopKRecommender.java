@@ -1,16 +1,27 @@
 package algorithms;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
 import utils.CommonUtils;
+import utils.Metrics;
+import utils.ModelSnapshot;
 import utils.Printer;
+import utils.TopKHeap;
+import utils.WorkPool;
+import data_structure.CSRMatrix;
 import data_structure.DenseVector;
+import data_structure.FlatMatrix;
+import data_structure.MipsIndex;
+import data_structure.PrunedTopK;
 import data_structure.Rating;
 import data_structure.SparseMatrix;
+import data_structure.UserItems;
 import data_structure.DenseMatrix;
 import utils.TopKPriorityQueue;
 
@@ -28,8 +39,14 @@ public abstract class TopKRecommender {
 	public int userCount;
 	/** The number of items. */
 	public int itemCount;
-	/** Rating matrix of training set. Users by Items.*/
+	/** 
+	 * Rating matrix of training set. Users by Items. Holds the ratings given to the 
+	 * constructor only; the ratings of updateModel are kept by the models, see trainRatings().
+	 * Null if the model was constructed from a CSRMatrix.
+	 */
 	public SparseMatrix trainMatrix;
+	// The ratings given to the constructor (or setTrain), see initialRatings().
+	private CSRMatrix initialCSR;
 	/** Test ratings. For showing progress only. */
 	public ArrayList<Rating> testRatings;
 	
@@ -42,9 +59,26 @@ public abstract class TopKRecommender {
 	public DenseVector hits;
 	public DenseVector ndcgs;
 	public DenseVector precs;
+	/** Time of each model update in the last online evaluation, in nanoseconds. */
+	public long[] updateNanos;
 	public int maxIterOnline = 1;
+	/** Number of training epochs done. buildModel continues from it, e.g. after loadSnapshot. */
+	public int epoch = 0;
 	
 	public boolean ignoreTrain = false; // ignore train items when generating topK list
+	// Train items of each user, for ignoreTrain and the online breakdown. Taken from 
+	// trainRatings() by the evaluations, and kept up to date by evaluateOnline.
+	protected UserItems trainItems;
+	/** Index of the item factors for approximate top-K, kept up to date by updateModel. */
+	public MipsIndex itemIndex;
+	/** Rank the items in evaluate() by a {@link PrunedTopK} over the factors, if the model has any. */
+	public boolean prunedEval = false;
+	
+	// Time of the top-K selection of a user, and the users whose GT item was out of the top-K
+	// before any selection.
+	private static final Metrics.Timer TOPK_TIMER = Metrics.timer("topk");
+	private static final Metrics.Counter TOPK_SKIPPED = Metrics.counter("topk_skipped");
+	
 	public TopKRecommender() {};
 	
 	public TopKRecommender(SparseMatrix trainMatrix, 
@@ -58,11 +92,85 @@ public abstract class TopKRecommender {
 		this.itemCount = trainMatrix.length()[1];
 	}
 	
+	public TopKRecommender(CSRMatrix trainRatings, 
+			ArrayList<Rating> testRatings, int topK, int threadNum) {
+		this.initialCSR = trainRatings;
+		this.testRatings = new ArrayList<Rating>(testRatings);
+		this.topK = topK;
+		this.threadNum = threadNum;
+		
+		this.userCount = trainRatings.length()[0];
+		this.itemCount = trainRatings.length()[1];
+	}
+	
+	/**
+	 * @return The ratings given to the constructor (or setTrain) as a CSR snapshot, shared
+	 * by the calls. Without the ratings of updateModel, see trainRatings().
+	 */
+	protected CSRMatrix initialRatings() {
+		if (initialCSR == null)	initialCSR = new CSRMatrix(trainMatrix);
+		return initialCSR;
+	}
+	
+	// Replace the ratings given to the constructor, for setTrain.
+	protected void setTrainMatrix(SparseMatrix trainMatrix) {
+		this.trainMatrix = new SparseMatrix(trainMatrix);
+		initialCSR = null;
+	}
+	
 	/**
 	 * Get the prediction score of user u on item i. To be overridden. 
 	 */
 	public abstract double predict(int u, int i);
 	
+	/**
+	 * Get the scores of all items for a batch of users: out[r][i] = predict(users[r], i).
+	 * To be overridden by models that score a block of users faster than item by item.
+	 * @param out One row of at least itemCount entries per user.
+	 */
+	public void scoreAll(int[] users, double[][] out) {
+		for (int r = 0; r < users.length; r ++) {
+			double[] scores = out[r];
+			for (int i = 0; i < itemCount; i ++)
+				scores[i] = predict(users[r], i);
+		}
+	}
+	
+	/**
+	 * As {@link #scoreAll(int[], double[][])}, for the evaluation: models that need scratch
+	 * space take it from the buffer instead of allocating it per block.
+	 */
+	protected void scoreAll(int[] users, double[][] out, EvalBuffer buffer) {
+		scoreAll(users, out);
+	}
+	
+	/**
+	 * @return The latent factors of the users, row u for user u, or null for models without.
+	 */
+	public FlatMatrix userFactors() {
+		return null;
+	}
+	
+	/**
+	 * @return The latent factors of the items, row i for item i, or null for models without.
+	 */
+	public FlatMatrix itemFactors() {
+		return null;
+	}
+	
+	/**
+	 * Build {@link #itemIndex} over the item factors, on threadNum threads. Once built, 
+	 * updateModel keeps it up to date; rebuild it after buildModel.
+	 * @param lists Number of lists of the index, 0 for about sqrt(itemCount).
+	 */
+	public MipsIndex buildIndex(int lists) {
+		FlatMatrix V = itemFactors();
+		if (V == null)
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " has no item factors");
+		itemIndex = new MipsIndex(V, lists, threadNum);
+		return itemIndex;
+	}
+	
 	/**
 	 * Build the model.
 	 */
@@ -73,6 +181,75 @@ public abstract class TopKRecommender {
 	 */
 	public abstract void updateModel(int u, int i);
 	
+	/**
+	 * Update the model with a mini-batch of observations (users[k], items[k]). To be 
+	 * overridden by models that coalesce the events of a batch; by default, one by one.
+	 */
+	public void updateModel(int[] users, int[] items) {
+		for (int k = 0; k < users.length; k ++)
+			updateModel(users[k], items[k]);
+	}
+	
+	/**
+	 * @return The distinct ids, sorted.
+	 */
+	protected static int[] distinct(int[] ids) {
+		int[] sorted = Arrays.copyOf(ids, ids.length);
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int k = 0; k < sorted.length; k ++)
+			if (n == 0 || sorted[k] != sorted[n - 1])	sorted[n ++] = sorted[k];
+		return Arrays.copyOf(sorted, n);
+	}
+	
+	/**
+	 * Save the learned parameters (and caches) of the model, so that it can be 
+	 * warm-started later by {@link #loadSnapshot(String)}.
+	 */
+	public void saveSnapshot(String file) throws IOException {
+		ModelSnapshot snapshot = new ModelSnapshot(getClass().getSimpleName(), epoch);
+		snapshot.put("shape", new int[] {userCount, itemCount});
+		saveState(snapshot);
+		snapshot.write(file);
+	}
+	
+	/**
+	 * Restore a model saved by {@link #saveSnapshot(String)}. The model must be constructed 
+	 * with the same training data and priors; buildModel then resumes from the saved epoch.
+	 */
+	public void loadSnapshot(String file) throws IOException {
+		ModelSnapshot snapshot = ModelSnapshot.read(file);
+		if (!snapshot.model.equals(getClass().getSimpleName()))
+			throw new IOException(file + " is a snapshot of " + snapshot.model);
+		int[] shape = snapshot.getInts("shape");
+		if (shape[0] != userCount || shape[1] != itemCount)
+			throw new IOException(file + " is for " + shape[0] + " users and " + shape[1] + " items");
+		loadState(snapshot);
+		epoch = snapshot.epoch;
+	}
+	
+	/**
+	 * Add the model parameters to a snapshot. To be overridden by models that support snapshots.
+	 */
+	protected void saveState(ModelSnapshot snapshot) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support snapshots");
+	}
+	
+	/**
+	 * Read back the model parameters added by {@link #saveState(ModelSnapshot)}.
+	 */
+	protected void loadState(ModelSnapshot snapshot) throws IOException {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support snapshots");
+	}
+	
+	/**
+	 * @return The train ratings, including those added by updateModel, as a CSR snapshot.
+	 * Models that support updateModel keep its ratings themselves and override it.
+	 */
+	protected CSRMatrix trainRatings() {
+		return initialRatings();
+	}
+	
 	/**
 	 * Show progress (evaluation) with current model parameters. 
 	 * @iter	Current iteration
@@ -110,7 +287,10 @@ public abstract class TopKRecommender {
 		double[] ndcgs_r = new double[intervals + 1];
 		double[] precs_r = new double[intervals + 1];
 		
-		Long updateTime = (long) 0;
+		updateNanos = new long[testCount];
+		long updateTime = 0;
+		EvalBuffer buffer = new EvalBuffer(itemCount, topK);
+		trainItems = new UserItems(trainRatings());
 		for (int i = 0; i < testCount; i ++) {
 			// Check performance per interval:
 			if (i > 0 && interval > 0 && i % interval == 0) {
@@ -119,13 +299,13 @@ public abstract class TopKRecommender {
 			}
 			// Evaluate model of the current test rating:
 			Rating rating = testRatings.get(i);
-			double[] res = this.evaluate_for_user(rating.userId, rating.itemId);
+			double[] res = this.evaluate_for_user(rating.userId, rating.itemId, buffer);
 			hits.set(i, res[0]);
 			ndcgs.set(i, res[1]);
 			precs.set(i, res[2]);
 			
 			// statisitcs for break down
-			int r = trainMatrix.getRowRef(rating.userId).itemCount();
+			int r = trainItems.size(rating.userId);
 			r =  r> intervals ? intervals : r;
 			counts[r] += 1;
 			hits_r[r] += res[0];
@@ -133,9 +313,11 @@ public abstract class TopKRecommender {
 			precs_r[r] += res[2];
 			
 			// Update the model
-			Long start = System.currentTimeMillis();
+			long start = System.nanoTime();
 			updateModel(rating.userId, rating.itemId);
-			updateTime += (System.currentTimeMillis() - start);
+			updateNanos[i] = System.nanoTime() - start;
+			trainItems.add(rating.userId, rating.itemId);
+			updateTime += updateNanos[i];
 		}
 		
 		System.out.println("Break down the results by number of user ratings for the test pair.");
@@ -146,17 +328,7 @@ public abstract class TopKRecommender {
 					hits_r[i] / counts[i], ndcgs_r[i] / counts[i], precs_r[i] / counts[i]);
 		}
 		
-		System.out.printf("Avg model update time per instance: %.2f ms\n", (float)updateTime/testCount);
-	}
-	
-	protected ArrayList<Integer> threadSplit(int total, int threadNum, int t) {
-		ArrayList<Integer> res = new ArrayList<Integer>();
-		int start = (total / threadNum) * t;
-		int end = (t == threadNum-1) ? total : 
-			(total / threadNum) * (t + 1);
-		for (int i = start; i < end; i ++)
-			res.add(i);
-		return res;
+		System.out.printf("Avg model update time per instance: %.2f ms\n", updateTime / 1e6 / testCount);
 	}
 	
 	/**
@@ -173,21 +345,59 @@ public abstract class TopKRecommender {
 		hits = new DenseVector(userCount);
 		ndcgs = new DenseVector(userCount);
 		precs = new DenseVector(userCount);
+		if (ignoreTrain)	trainItems = new UserItems(trainRatings());
 		
-		// Run the evaluation multi-threads splitted by users
-		EvaluationThread[] threads = new EvaluationThread[threadNum];
-		for (int t = 0; t < threadNum; t ++) {
-			ArrayList<Integer> users = threadSplit(userCount, threadNum, t);
-			threads[t] = new EvaluationThread(this, testRatings, users);
-			threads[t].start();
+		// Exact top-K of the factors, without scoring all items.
+		PrunedTopK pruned = null;
+		FlatMatrix U = null;
+		if (prunedEval && itemFactors() != null) {
+			pruned = new PrunedTopK(itemFactors());
+			U = userFactors();
 		}
 		
-		// Wait until all threads are finished.
-		for (int t = 0; t < threads.length; t++) { 
-		  try {
-				threads[t].join();
-			} catch (InterruptedException e) {
-				System.err.println("InterruptException was caught: " + e.getMessage());
+		// Run the evaluation on the shared pool, in chunks of users.
+		final ArrayList<Rating> ratings = testRatings;
+		final PrunedTopK index = pruned;
+		final FlatMatrix userFactors = U;
+		// Scratch space of each worker, for this call only.
+		final EvalBuffer[] buffers = new EvalBuffer[Math.max(1, threadNum)];
+		WorkPool.run(threadNum, userCount, null, 0, new WorkPool.RangeTask() {
+			public void run(int worker, int start, int end) {
+				if (buffers[worker] == null)	buffers[worker] = new EvalBuffer(itemCount, topK);
+				evaluate_users(ratings, start, end, index, userFactors, buffers[worker]);
+			}
+		});
+	}
+	
+	/**
+	 * Offline evaluation of users [start, end): from the pruned index if not null, else
+	 * scoring the users block by block, keeping a block under ~32MB of scores.
+	 */
+	protected void evaluate_users(ArrayList<Rating> testRatings, int start, int end, 
+			PrunedTopK pruned, FlatMatrix U, EvalBuffer buffer) {
+		if (pruned != null) {
+			for (int u = start; u < end; u ++) {
+				double[] res = rank_for_user(u, testRatings.get(u).itemId, pruned, U, buffer);
+				hits.set(u, res[0]);
+				ndcgs.set(u, res[1]);
+				precs.set(u, res[2]);
+			}
+			return;
+		}
+		int batch = Math.max(1, Math.min(64, (1 << 22) / Math.max(1, itemCount)));
+		for (int from = start; from < end; from += batch) {
+			int size = Math.min(batch, end - from);
+			int[] block = buffer.block(size);
+			for (int r = 0; r < size; r ++)
+				block[r] = from + r;
+			scoreAll(block, buffer.blockScores, buffer);
+			
+			for (int r = 0; r < size; r ++) {
+				int u = block[r];
+				double[] res = rank_for_user(u, testRatings.get(u).itemId, buffer.blockScores[r], buffer);
+				hits.set(u, res[0]);
+				ndcgs.set(u, res[1]);
+				precs.set(u, res[2]);
 			}
 		}
 	}
@@ -198,34 +408,154 @@ public abstract class TopKRecommender {
 	 * 	 result[0]: hit ratio
 	 * 	 result[1]: ndcg
 	 * 	 result[2]: precision
+	 * in buffer.result, valid until the next call with the buffer.
 	 */
-	protected double[] evaluate_for_user(int u, int gtItem) {
-		double[] result = new double[3];
-		HashMap<Integer, Double> map_item_score = new HashMap<Integer, Double>();
+	protected double[] evaluate_for_user(int u, int gtItem, EvalBuffer buffer) {
+		double[] scores = buffer.scores;
 		// Get the score of the test item first.
 		double maxScore = predict(u, gtItem);
 		
-		// Early stopping if there are topK items larger than maxScore.
+		// Early stopping if there are topK items larger than maxScore; excluded train items
+		// are not counted, as they cannot be ranked.
+		BitSet ignored = buffer.ignored;
+		if (ignoreTrain)	trainItems.mark(u, ignored, true);
 		int countLarger = 0;
 		for (int i = 0; i < itemCount; i++) {
 			double score = predict(u, i);
-			map_item_score.put(i, score);
+			scores[i] = score;
 			
-			if (score > maxScore)	countLarger ++;
-			if (countLarger > topK)	return result;	// early stopping
+			if (score > maxScore && (!ignoreTrain || !ignored.get(i)))	countLarger ++;
+			if (countLarger > topK) {	// early stopping
+				if (ignoreTrain)	trainItems.mark(u, ignored, false);
+				Arrays.fill(buffer.result, 0);
+				return buffer.result;
+			}
+		}
+		if (ignoreTrain)	trainItems.mark(u, ignored, false);
+		return rank_for_user(u, gtItem, scores, buffer);
+	}
+	
+	/**
+	 * Evaluation for a specific user with given GT item, from the scores of all items.
+	 * @return the same as {@link #evaluate_for_user(int, int, EvalBuffer)}.
+	 */
+	protected double[] rank_for_user(int u, int gtItem, double[] scores, EvalBuffer buffer) {
+		long time = Metrics.start();
+		double[] result = buffer.result;
+		Arrays.fill(result, 0);
+		
+		// No need to rank if there are topK items larger than the GT item. Only the items
+		// that can be ranked count, so that with ignoreTrain this agrees with the pruned path.
+		BitSet ignored = buffer.ignored;
+		if (ignoreTrain)	trainItems.mark(u, ignored, true);
+		double maxScore = scores[gtItem];
+		int countLarger = 0;
+		for (int i = 0; i < itemCount; i++) {
+			if (scores[i] > maxScore && (!ignoreTrain || !ignored.get(i)) && ++countLarger > topK) {
+				if (ignoreTrain)	trainItems.mark(u, ignored, false);
+				TOPK_SKIPPED.inc();
+				TOPK_TIMER.stop(time);
+				return result;
+			}
+		}
+		
+		// Selecting topK items, excluding train items if ignoreTrain.
+		TopKHeap heap = buffer.heap;
+		heap.clear();
+		for (int i = 0; i < itemCount; i++) {
+			if (!ignoreTrain || !ignored.get(i))
+				heap.add(i, scores[i]);
 		}
+		if (ignoreTrain)	trainItems.mark(u, ignored, false);
 		
-		// Selecting topK items (does not exclude train items).
-		ArrayList<Integer> rankList = ignoreTrain ? 
-				CommonUtils.TopKeysByValue(map_item_score, topK, trainMatrix.getRowRef(u).indexList()) : 
-				CommonUtils.TopKeysByValue(map_item_score, topK, null);
-		result[0] = getHitRatio(rankList, gtItem);
-		result[1] = getNDCG(rankList, gtItem);
-		result[2] = getPrecision(rankList, gtItem);
+		// Position of the GT item in the ranklist.
+		int size = heap.sortDescending();
+		rank(heap, size, gtItem, result);
+		TOPK_TIMER.stop(time);
+		return result;
+	}
+	
+	/**
+	 * Evaluation for a specific user with given GT item, from the top-K of a pruned index over
+	 * the item factors, and the user factors U.
+	 * @return the same as {@link #evaluate_for_user(int, int, EvalBuffer)}.
+	 */
+	protected double[] rank_for_user(int u, int gtItem, PrunedTopK index, FlatMatrix U, 
+			EvalBuffer buffer) {
+		long time = Metrics.start();
+		double[] result = buffer.result;
+		Arrays.fill(result, 0);
+		double[] query = buffer.query(index.factors());
+		U.copyRow(u, query);
 		
+		BitSet ignored = buffer.ignored;
+		if (ignoreTrain)	trainItems.mark(u, ignored, true);
+		TopKHeap heap = buffer.heap;
+		int size = index.search(query, heap, ignoreTrain ? ignored : null);
+		if (ignoreTrain)	trainItems.mark(u, ignored, false);
+		rank(heap, size, gtItem, result);
+		TOPK_TIMER.stop(time);
 		return result;
 	}
 	
+	// Hit ratio, NDCG and precision of the GT item in the sorted heap, into result.
+	private static void rank(TopKHeap heap, int size, int gtItem, double[] result) {
+		for (int k = 0; k < size; k++) {
+			if (heap.id(k) == gtItem) {
+				result[0] = 1;
+				result[1] = Math.log(2) / Math.log(k+2);
+				result[2] = 1.0 / (k + 1);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Reusable buffers of one evaluating thread, so that ranking a user allocates nothing.
+	 * Created per evaluation and per worker; it holds no reference to the model, so that
+	 * nothing outlives the evaluation.
+	 */
+	protected static class EvalBuffer {
+		final int itemCount;
+		final double[] scores;
+		final BitSet ignored;
+		final TopKHeap heap;
+		// hit ratio, ndcg and precision of the last ranked user
+		final double[] result = new double[3];
+		private double[] query, work;
+		// Users of a block and their scores, for evaluate_users.
+		int[] block = new int[0];
+		double[][] blockScores = new double[0][];
+		
+		EvalBuffer(int itemCount, int topK) {
+			this.itemCount = itemCount;
+			scores = new double[itemCount];
+			ignored = new BitSet(itemCount);
+			heap = new TopKHeap(topK);
+		}
+		
+		int[] block(int size) {
+			if (block.length != size) {
+				block = new int[size];
+				if (blockScores.length < size)	blockScores = new double[size][itemCount];
+			}
+			return block;
+		}
+		
+		double[] query(int factors) {
+			if (query == null || query.length != factors)
+				query = new double[factors];
+			return query;
+		}
+		
+		// Scratch space of the models for scoreAll, grown as needed.
+		double[] work(int size) {
+			if (work == null || work.length < size)
+				work = new double[size];
+			return work;
+		}
+	}
+	
 	/**
 	 * Compute Hit Ratio.
 	 * @param rankList  A list of ranked item IDs
@@ -272,27 +602,4 @@ public abstract class TopKRecommender {
 	
 	// remove
 	public void setUV(DenseMatrix U, DenseMatrix V) {};
-}
-
-// Thread for running the offline evaluation.
-class EvaluationThread extends Thread {
-	TopKRecommender model;
-	ArrayList<Rating> testRatings;
-	ArrayList<Integer> users;
-
-	public EvaluationThread(TopKRecommender model, ArrayList<Rating> testRatings, 
-			ArrayList<Integer> users) {
-		this.model = model;
-		this.testRatings = testRatings;
-		this.users = users;
-	}
-	
-	public void run() {
-		for (int u : users) {
-			double[] res = model.evaluate_for_user(u, testRatings.get(u).itemId);
-			model.hits.set(u, res[0]);
-			model.ndcgs.set(u, res[1]);
-			model.precs.set(u, res[2]);
-		}
-	}
 }
\ No newline at end of file
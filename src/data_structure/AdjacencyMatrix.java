@@ -0,0 +1,215 @@
+package data_structure;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix of (value, weight) entries kept as appendable primitive buffers per row
+ * and per column, e.g. ratings and their confidence weights for online learning.
+ *
+ * Unlike {@link SparseMatrix}, setting an entry neither boxes indices nor allocates map
+ * nodes, and a row (column) is read as aligned arrays, so the update kernels can walk it
+ * like a CSR row. Entries of a row (column) are kept sorted by column (row) index.
+ * Buffers grow by half their size when full, so allocation is amortized over many updates.
+ */
+public class AdjacencyMatrix {
+	/** The number of rows. */
+	private int M;
+	/** The number of columns. */
+	private int N;
+
+	// Row i: column indices rowIdx[i][0..rowSize[i]), with aligned values and weights.
+	private int[] rowSize;
+	private int[][] rowIdx;
+	private double[][] rowVal, rowWeight;
+
+	// Column j: row indices colIdx[j][0..colSize[j]), with aligned values and weights.
+	private int[] colSize;
+	private int[][] colIdx;
+	private double[][] colVal, colWeight;
+
+	/**
+	 * Construct from a value matrix and a weight matrix with the same sparsity pattern.
+	 */
+	public AdjacencyMatrix(CSRMatrix values, CSRMatrix weights) {
+		this.M = values.length()[0];
+		this.N = values.length()[1];
+		int[] rowPtr = values.rowPtr(), colPtr = values.colPtr();
+		rowSize = new int[M];
+		rowIdx = new int[M][];
+		rowVal = new double[M][];
+		rowWeight = new double[M][];
+		for (int i = 0; i < M; i ++) {
+			int from = rowPtr[i], to = rowPtr[i + 1];
+			rowSize[i] = to - from;
+			rowIdx[i] = Arrays.copyOfRange(values.colIndex(), from, to + 2);
+			rowVal[i] = Arrays.copyOfRange(values.rowValues(), from, to + 2);
+			rowWeight[i] = Arrays.copyOfRange(weights.rowValues(), from, to + 2);
+		}
+		colSize = new int[N];
+		colIdx = new int[N][];
+		colVal = new double[N][];
+		colWeight = new double[N][];
+		for (int j = 0; j < N; j ++) {
+			int from = colPtr[j], to = colPtr[j + 1];
+			colSize[j] = to - from;
+			colIdx[j] = Arrays.copyOfRange(values.rowIndex(), from, to + 2);
+			colVal[j] = Arrays.copyOfRange(values.colValues(), from, to + 2);
+			colWeight[j] = Arrays.copyOfRange(weights.colValues(), from, to + 2);
+		}
+	}
+
+	/**
+	 * Set the value and weight of entry [i, j], inserting it if absent.
+	 *
+	 * @return true if the entry is new.
+	 */
+	public boolean set(int i, int j, double value, double weight) {
+		int pos = Arrays.binarySearch(rowIdx[i], 0, rowSize[i], j);
+		if (pos >= 0) {
+			rowVal[i][pos] = value;
+			rowWeight[i][pos] = weight;
+			int cpos = Arrays.binarySearch(colIdx[j], 0, colSize[j], i);
+			colVal[j][cpos] = value;
+			colWeight[j][cpos] = weight;
+			return false;
+		}
+
+		pos = -pos - 1;
+		int size = rowSize[i];
+		if (size == rowIdx[i].length) {
+			int capacity = size + (size >> 1) + 2;
+			rowIdx[i] = Arrays.copyOf(rowIdx[i], capacity);
+			rowVal[i] = Arrays.copyOf(rowVal[i], capacity);
+			rowWeight[i] = Arrays.copyOf(rowWeight[i], capacity);
+		}
+		insert(rowIdx[i], rowVal[i], rowWeight[i], size, pos, j, value, weight);
+		rowSize[i] ++;
+
+		int cpos = -Arrays.binarySearch(colIdx[j], 0, colSize[j], i) - 1;
+		size = colSize[j];
+		if (size == colIdx[j].length) {
+			int capacity = size + (size >> 1) + 2;
+			colIdx[j] = Arrays.copyOf(colIdx[j], capacity);
+			colVal[j] = Arrays.copyOf(colVal[j], capacity);
+			colWeight[j] = Arrays.copyOf(colWeight[j], capacity);
+		}
+		insert(colIdx[j], colVal[j], colWeight[j], size, cpos, i, value, weight);
+		colSize[j] ++;
+		return true;
+	}
+
+	/**
+	 * Remove entry [i, j] if present.
+	 *
+	 * @return true if the entry was there.
+	 */
+	public boolean remove(int i, int j) {
+		int pos = Arrays.binarySearch(rowIdx[i], 0, rowSize[i], j);
+		if (pos < 0)	return false;
+		delete(rowIdx[i], rowVal[i], rowWeight[i], rowSize[i] --, pos);
+		pos = Arrays.binarySearch(colIdx[j], 0, colSize[j], i);
+		delete(colIdx[j], colVal[j], colWeight[j], colSize[j] --, pos);
+		return true;
+	}
+
+	// Shift (pos, size) one slot to the left, over the entry at pos.
+	private static void delete(int[] idx, double[] val, double[] weight, int size, int pos) {
+		System.arraycopy(idx, pos + 1, idx, pos, size - pos - 1);
+		System.arraycopy(val, pos + 1, val, pos, size - pos - 1);
+		System.arraycopy(weight, pos + 1, weight, pos, size - pos - 1);
+	}
+
+	// Shift [pos, size) one slot to the right and write the entry at pos.
+	private static void insert(int[] idx, double[] val, double[] weight, int size, int pos,
+			int index, double value, double w) {
+		System.arraycopy(idx, pos, idx, pos + 1, size - pos);
+		System.arraycopy(val, pos, val, pos + 1, size - pos);
+		System.arraycopy(weight, pos, weight, pos + 1, size - pos);
+		idx[pos] = index;
+		val[pos] = value;
+		weight[pos] = w;
+	}
+
+	/*========================================
+	 * Getter
+	 *========================================*/
+	/**
+	 * @return The value of entry [i, j], 0 if absent.
+	 */
+	public double getValue(int i, int j) {
+		int pos = Arrays.binarySearch(rowIdx[i], 0, rowSize[i], j);
+		return pos >= 0 ? rowVal[i][pos] : 0;
+	}
+
+	/** @return The number of entries in row i. */
+	public int rowSize(int i) {
+		return rowSize[i];
+	}
+
+	/**
+	 * Column indices of row i, valid up to rowSize(i). The arrays of a row are replaced
+	 * when it grows, so do not keep them across calls to {@link #set}.
+	 */
+	public int[] rowIndex(int i) {
+		return rowIdx[i];
+	}
+
+	public double[] rowValues(int i) {
+		return rowVal[i];
+	}
+
+	public double[] rowWeights(int i) {
+		return rowWeight[i];
+	}
+
+	/** @return The number of entries in column j. */
+	public int colSize(int j) {
+		return colSize[j];
+	}
+
+	/** Row indices of column j, valid up to colSize(j). */
+	public int[] colIndex(int j) {
+		return colIdx[j];
+	}
+
+	public double[] colValues(int j) {
+		return colVal[j];
+	}
+
+	public double[] colWeights(int j) {
+		return colWeight[j];
+	}
+
+	/**
+	 * @return An array containing the length of this matrix.
+	 * Index 0 contains row count, while index 1 column count.
+	 */
+	public int[] length() {
+		return new int[] {M, N};
+	}
+
+	/**
+	 * Compress the values (or the weights) into an immutable CSR matrix.
+	 */
+	public CSRMatrix toCSR(boolean weights) {
+		int[] rowPtr = new int[M + 1];
+		for (int i = 0; i < M; i ++)
+			rowPtr[i + 1] = rowPtr[i] + rowSize[i];
+		int[] cols = new int[rowPtr[M]];
+		double[] rowData = new double[rowPtr[M]];
+		for (int i = 0; i < M; i ++) {
+			System.arraycopy(rowIdx[i], 0, cols, rowPtr[i], rowSize[i]);
+			System.arraycopy(weights ? rowWeight[i] : rowVal[i], 0, rowData, rowPtr[i], rowSize[i]);
+		}
+		int[] colPtr = new int[N + 1];
+		for (int j = 0; j < N; j ++)
+			colPtr[j + 1] = colPtr[j] + colSize[j];
+		int[] rows = new int[colPtr[N]];
+		double[] colData = new double[colPtr[N]];
+		for (int j = 0; j < N; j ++) {
+			System.arraycopy(colIdx[j], 0, rows, colPtr[j], colSize[j]);
+			System.arraycopy(weights ? colWeight[j] : colVal[j], 0, colData, colPtr[j], colSize[j]);
+		}
+		return new CSRMatrix(M, N, rowPtr, cols, rowData, colPtr, rows, colData);
+	}
+}
@@ -0,0 +1,303 @@
+package data_structure;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import utils.RatingParser;
+
+/**
+ * Immutable sparse matrix in compressed sparse row (CSR) format, with a mirrored
+ * compressed sparse column (CSC) view.
+ *
+ * Entries of each row (column) are stored contiguously and sorted by column (row) index,
+ * so the training loops can walk a user (item) without boxing or hashing.
+ * Use {@link SparseMatrix} when the matrix needs to be modified.
+ */
+public class CSRMatrix implements Serializable {
+	private static final long serialVersionUID = 8004;
+
+	/** The number of rows. */
+	private int M;
+	/** The number of columns. */
+	private int N;
+
+	/** Row i occupies positions [rowPtr[i], rowPtr[i+1]) of colIdx and rowVal. */
+	private int[] rowPtr;
+	private int[] colIdx;
+	private double[] rowVal;
+
+	/** Column j occupies positions [colPtr[j], colPtr[j+1]) of rowIdx and colVal. */
+	private int[] colPtr;
+	private int[] rowIdx;
+	private double[] colVal;
+
+	/*========================================
+	 * Constructors
+	 *========================================*/
+	/**
+	 * Construct a compressed matrix with data copied from a sparse matrix.
+	 *
+	 * @param sm The matrix having data being copied.
+	 */
+	public CSRMatrix(SparseMatrix sm) {
+		this.M = sm.length()[0];
+		this.N = sm.length()[1];
+
+		rowPtr = new int[M + 1];
+		for (int i = 0; i < M; i ++)
+			rowPtr[i + 1] = rowPtr[i] + sm.getRowRef(i).itemCount();
+		int nnz = rowPtr[M];
+		colIdx = new int[nnz];
+		rowVal = new double[nnz];
+		for (int i = 0; i < M; i ++) {
+			int pos = rowPtr[i];
+			for (int j : sm.getRowRef(i).indexList())
+				colIdx[pos ++] = j;
+			Arrays.sort(colIdx, rowPtr[i], rowPtr[i + 1]);
+			for (int k = rowPtr[i]; k < rowPtr[i + 1]; k ++)
+				rowVal[k] = sm.getValue(i, colIdx[k]);
+		}
+		buildColumns();
+	}
+
+	/**
+	 * Construct a compressed matrix from coordinate (COO) triples.
+	 * If an entry appears more than once, the last value is kept,
+	 * and entries with value 0 are dropped (same as {@link SparseMatrix#setValue}).
+	 *
+	 * @param m The number of rows.
+	 * @param n The number of columns.
+	 * @param rows Row index of each triple.
+	 * @param cols Column index of each triple.
+	 * @param vals Value of each triple.
+	 * @param count The number of triples to read.
+	 */
+	public CSRMatrix(int m, int n, int[] rows, int[] cols, double[] vals, int count) {
+		this.M = m;
+		this.N = n;
+
+		// Bucket the triples by row, keeping their input order inside a row.
+		int[] ptr = new int[M + 1];
+		for (int k = 0; k < count; k ++)
+			ptr[rows[k] + 1] ++;
+		for (int i = 0; i < M; i ++)
+			ptr[i + 1] += ptr[i];
+		int[] order = new int[count];
+		int[] next = Arrays.copyOf(ptr, M);
+		for (int k = 0; k < count; k ++)
+			order[next[rows[k]] ++] = k;
+
+		// Sort each row by column, deduplicate and drop zeros.
+		rowPtr = new int[M + 1];
+		colIdx = new int[count];
+		rowVal = new double[count];
+		long[] keys = new long[0];
+		int nnz = 0;
+		for (int i = 0; i < M; i ++) {
+			int len = ptr[i + 1] - ptr[i];
+			if (keys.length < len)	keys = new long[len];
+			// (column, input position) packed so that the sort is stable.
+			for (int k = 0; k < len; k ++) {
+				int t = order[ptr[i] + k];
+				keys[k] = ((long) cols[t] << 32) | t;
+			}
+			Arrays.sort(keys, 0, len);
+			for (int k = 0; k < len; k ++) {
+				int j = (int) (keys[k] >>> 32);
+				if (k + 1 < len && (int) (keys[k + 1] >>> 32) == j)	continue; // a later duplicate wins
+				double value = vals[(int) keys[k]];
+				if (value == 0)	continue;
+				colIdx[nnz] = j;
+				rowVal[nnz] = value;
+				nnz ++;
+			}
+			rowPtr[i + 1] = nnz;
+		}
+		colIdx = Arrays.copyOf(colIdx, nnz);
+		rowVal = Arrays.copyOf(rowVal, nnz);
+		buildColumns();
+	}
+
+	/**
+	 * Construct a compressed matrix directly from its CSR and CSC arrays, e.g. as read
+	 * back from a file. The arrays are used as they are, without copy or validation.
+	 */
+	public CSRMatrix(int m, int n, int[] rowPtr, int[] colIdx, double[] rowVal, 
+			int[] colPtr, int[] rowIdx, double[] colVal) {
+		this.M = m;
+		this.N = n;
+		this.rowPtr = rowPtr;
+		this.colIdx = colIdx;
+		this.rowVal = rowVal;
+		this.colPtr = colPtr;
+		this.rowIdx = rowIdx;
+		this.colVal = colVal;
+	}
+
+	// Fill the CSC arrays by a counting sort over the CSR entries.
+	private void buildColumns() {
+		int nnz = rowPtr[M];
+		colPtr = new int[N + 1];
+		for (int k = 0; k < nnz; k ++)
+			colPtr[colIdx[k] + 1] ++;
+		for (int j = 0; j < N; j ++)
+			colPtr[j + 1] += colPtr[j];
+
+		rowIdx = new int[nnz];
+		colVal = new double[nnz];
+		int[] next = Arrays.copyOf(colPtr, N);
+		for (int i = 0; i < M; i ++) {  // rows are visited in order, so columns come out sorted
+			for (int k = rowPtr[i]; k < rowPtr[i + 1]; k ++) {
+				int pos = next[colIdx[k]] ++;
+				rowIdx[pos] = i;
+				colVal[pos] = rowVal[k];
+			}
+		}
+	}
+
+	/**
+	 *  Load a .rating file (userID\t itemID\t score\t timestamp per line) as a users by items matrix.
+	 *
+	 * @param ratingFile The file to read.
+	 * @param implicit Whether to store 1 for every rating (as the implicit feedback setting)
+	 * 	or the score of the rating.
+	 */
+	public static CSRMatrix readRatings(String ratingFile, boolean implicit) throws IOException {
+		RatingTable ratings = RatingParser.parse(ratingFile, Runtime.getRuntime().availableProcessors());
+		double[] values = new double[ratings.count];
+		for (int k = 0; k < ratings.count; k ++)
+			values[k] = implicit ? 1 : ratings.scores[k];
+		return new CSRMatrix(ratings.userCount, ratings.itemCount, 
+				ratings.users, ratings.items, values, ratings.count);
+	}
+
+	/**
+	 * Convert back to a (modifiable) sparse matrix.
+	 */
+	public SparseMatrix toSparseMatrix() {
+		SparseMatrix sm = new SparseMatrix(M, N);
+		for (int i = 0; i < M; i ++)
+			for (int k = rowPtr[i]; k < rowPtr[i + 1]; k ++)
+				sm.setValue(i, colIdx[k], rowVal[k]);
+		return sm;
+	}
+
+	/**
+	 * @return A matrix with the entries of this one, all set to value, e.g. unit weights.
+	 * The index arrays are shared.
+	 */
+	public CSRMatrix withValue(double value) {
+		double[] rows = new double[rowVal.length], cols = new double[colVal.length];
+		Arrays.fill(rows, value);
+		Arrays.fill(cols, value);
+		return new CSRMatrix(M, N, rowPtr, colIdx, rows, colPtr, rowIdx, cols);
+	}
+
+	/*========================================
+	 * Getter
+	 *========================================*/
+	/**
+	 * Retrieve a stored value by binary search in the row.
+	 *
+	 * @param i The row index to retrieve.
+	 * @param j The column index to retrieve.
+	 * @return The value stored at the given index, 0 if absent.
+	 */
+	public double getValue(int i, int j) {
+		int pos = Arrays.binarySearch(colIdx, rowPtr[i], rowPtr[i + 1], j);
+		return pos >= 0 ? rowVal[pos] : 0;
+	}
+
+	/**
+	 * @return Whether entry [i, j] is stored.
+	 */
+	public boolean contains(int i, int j) {
+		return Arrays.binarySearch(colIdx, rowPtr[i], rowPtr[i + 1], j) >= 0;
+	}
+
+	/**
+	 * @return The number of entries in row i.
+	 */
+	public int rowSize(int i) {
+		return rowPtr[i + 1] - rowPtr[i];
+	}
+
+	/**
+	 * @return The number of entries in column j.
+	 */
+	public int colSize(int j) {
+		return colPtr[j + 1] - colPtr[j];
+	}
+
+	/**
+	 * The row pointers of the CSR view (length rows + 1).
+	 * Make sure to use the returned arrays only for read-only purpose.
+	 */
+	public int[] rowPtr() {
+		return rowPtr;
+	}
+
+	/** Column indices of the CSR view, sorted within each row. */
+	public int[] colIndex() {
+		return colIdx;
+	}
+
+	/** Values of the CSR view. */
+	public double[] rowValues() {
+		return rowVal;
+	}
+
+	/** The column pointers of the CSC view (length columns + 1). */
+	public int[] colPtr() {
+		return colPtr;
+	}
+
+	/** Row indices of the CSC view, sorted within each column. */
+	public int[] rowIndex() {
+		return rowIdx;
+	}
+
+	/** Values of the CSC view. */
+	public double[] colValues() {
+		return colVal;
+	}
+
+	/*========================================
+	 * Properties
+	 *========================================*/
+	/**
+	 * @return An array containing the length of this matrix.
+	 * Index 0 contains row count, while index 1 column count.
+	 */
+	public int[] length() {
+		return new int[] {M, N};
+	}
+
+	/**
+	 * @return The number of stored entries.
+	 */
+	public int itemCount() {
+		return rowPtr[M];
+	}
+
+	/**
+	 * @return The largest number of entries in a row.
+	 */
+	public int maxRowSize() {
+		int max = 0;
+		for (int i = 0; i < M; i ++)
+			max = Math.max(max, rowSize(i));
+		return max;
+	}
+
+	/**
+	 * @return The largest number of entries in a column.
+	 */
+	public int maxColSize() {
+		int max = 0;
+		for (int j = 0; j < N; j ++)
+			max = Math.max(max, colSize(j));
+		return max;
+	}
+}
@@ -243,11 +243,7 @@ public class DenseMatrix implements Serializable {
 	public static double rowMult(DenseMatrix m, int mrow, DenseMatrix n, int nrow) {
 		assert m.numColumns == n.numColumns;
 
-		double res = 0;
-		for (int j = 0, k = m.numColumns; j < k; j++)
-			res += m.get(mrow, j) * n.get(nrow, j);
-
-		return res;
+		return Kernels.dot(m.numColumns, m.data[mrow], 0, n.data[nrow], 0);
 	}
 
 	/**
@@ -297,6 +293,38 @@ public class DenseMatrix implements Serializable {
 		return res;
 	}
 
+	/**
+	 * Inner products of selected rows of m with every row of n, i.e. a block of
+	 * {@code m * n^t}: out[r][j] = m.row(mrows[r]) . n.row(j). <br>
+	 * 
+	 * Rows of n are visited in blocks that fit in cache, and each block is multiplied with
+	 * all the selected rows of m before moving on.
+	 * 
+	 * @param m
+	 *            the first matrix
+	 * @param mrows
+	 *            rows of the first matrix
+	 * @param n
+	 *            the second matrix
+	 * @param out
+	 *            results, one row (of at least n.numRows entries) per selected row
+	 */
+	public static void rowMultAll(DenseMatrix m, int[] mrows, DenseMatrix n, double[][] out) {
+		assert m.numColumns == n.numColumns;
+
+		int K = m.numColumns;
+		int block = Math.max(4, (1 << 15) / Math.max(1, K)); // ~256KB of n per block
+		for (int j0 = 0; j0 < n.numRows; j0 += block) {
+			int j1 = Math.min(n.numRows, j0 + block);
+			for (int r = 0; r < mrows.length; r++) {
+				double[] a = m.data[mrows[r]];
+				double[] res = out[r];
+				for (int j = j0; j < j1; j++)
+					res[j] = Kernels.dot(K, a, 0, n.data[j], 0);
+			}
+		}
+	}
+
 	/**
 	 * Matrix multiplication with a dense matrix
 	 * 
@@ -307,16 +335,11 @@ public class DenseMatrix implements Serializable {
 	public DenseMatrix mult(DenseMatrix mat) {
 		assert this.numColumns == mat.numRows;
 
+		// Row i of the result sums the rows of mat weighted by row i of this matrix.
 		DenseMatrix res = new DenseMatrix(this.numRows, mat.numColumns);
 		for (int i = 0; i < res.numRows; i++) {
-			for (int j = 0; j < res.numColumns; j++) {
-
-				double product = 0;
-				for (int k = 0; k < this.numColumns; k++)
-					product += data[i][k] * mat.data[k][j];
-
-				res.set(i, j, product);
-			}
+			for (int k = 0; k < this.numColumns; k++)
+				Kernels.axpy(mat.numColumns, data[i][k], mat.data[k], 0, res.data[i], 0);
 		}
 
 		return res;
@@ -332,7 +355,7 @@ public class DenseMatrix implements Serializable {
 
 		DenseVector res = new DenseVector(this.numRows);
 		for (int i = 0; i < this.numRows; i++)
-			res.set(i, row(i, false).inner(vec));
+			res.set(i, Kernels.dot(numColumns, data[i], 0, vec.data, 0));
 
 		return res;
 	}
@@ -485,6 +508,49 @@ public class DenseMatrix implements Serializable {
 		return L.transpose();
 	}
 
+	/**
+	 * Solve A x = b in place for a symmetric positive definite n by n matrix A, stored row-major
+	 * in a flat array. Only the lower triangle of A is read; it is overwritten by the Cholesky
+	 * factor L, and b by the solution x. Nothing is allocated, for solvers in inner loops.
+	 *
+	 * @return false if A is not positive definite (A and b are then partially overwritten)
+	 */
+	public static boolean choleskySolve(double[] A, double[] b, int n) {
+		// Factorize A = L L^T, row by row.
+		for (int i = 0; i < n; i++) {
+			int ri = i * n;
+			for (int j = 0; j <= i; j++) {
+				int rj = j * n;
+				double sum = A[ri + j];
+				for (int k = 0; k < j; k++)
+					sum -= A[ri + k] * A[rj + k];
+				if (i == j) {
+					if (!(sum > 0))
+						return false;
+					A[ri + i] = Math.sqrt(sum);
+				} else {
+					A[ri + j] = sum / A[rj + j];
+				}
+			}
+		}
+		// Forward substitution L y = b.
+		for (int i = 0; i < n; i++) {
+			int ri = i * n;
+			double sum = b[i];
+			for (int k = 0; k < i; k++)
+				sum -= A[ri + k] * b[k];
+			b[i] = sum / A[ri + i];
+		}
+		// Back substitution L^T x = y.
+		for (int i = n - 1; i >= 0; i--) {
+			double sum = b[i];
+			for (int k = i + 1; k < n; k++)
+				sum -= A[k * n + i] * b[k];
+			b[i] = sum / A[i * n + i];
+		}
+		return true;
+	}
+
 	/**
 	 * @return a transposed matrix of current matrix
 	 */
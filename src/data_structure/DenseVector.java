@@ -274,11 +274,7 @@ public class DenseVector implements Serializable {
 	public double inner(DenseVector vec) {
 		assert size == vec.size;
 
-		double result = 0;
-		for (int i = 0; i < vec.size; i++)
-			result += get(i) * vec.get(i);
-
-		return result;
+		return Kernels.dot(size, data, 0, vec.data, 0);
 	}
 
 	/**
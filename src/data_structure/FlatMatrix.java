@@ -0,0 +1,457 @@
+package data_structure;
+
+import happy.coding.math.Randoms;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Data Structure: dense matrix stored in one row-major array <br>
+ *
+ * Unlike {@link DenseMatrix}, rows are not separate arrays, so a matrix of latent factors
+ * costs no per-row header or pointer chase and rows sit next to each other in memory.
+ * The entries can be kept in double ({@link Float64}) or float ({@link Float32}) precision;
+ * computations are done in double either way. The total number of entries is limited
+ * by the maximum length of a Java array.
+ */
+public abstract class FlatMatrix implements Serializable {
+	private static final long serialVersionUID = 8005;
+
+	// dimension
+	protected int numRows, numColumns;
+
+	protected FlatMatrix(int numRows, int numColumns) {
+		if ((long) numRows * numColumns > Integer.MAX_VALUE - 8)
+			throw new RuntimeException("Matrix is too large for a flat array: "
+					+ numRows + " x " + numColumns);
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+	}
+
+	/**
+	 * Construct a zero matrix with specified dimensions.
+	 *
+	 * @param single
+	 *            whether to store the entries in float precision
+	 */
+	public static FlatMatrix create(int numRows, int numColumns, boolean single) {
+		return single ? new Float32(numRows, numColumns) : new Float64(numRows, numColumns);
+	}
+
+	/**
+	 * Construct a flat matrix by copying data from a dense matrix.
+	 */
+	public static FlatMatrix fromDense(DenseMatrix mat, boolean single) {
+		FlatMatrix res = create(mat.numRows, mat.numColumns, single);
+		for (int i = 0; i < mat.numRows; i++)
+			for (int j = 0; j < mat.numColumns; j++)
+				res.set(i, j, mat.data[i][j]);
+		return res;
+	}
+
+	/**
+	 * Copy the data into a dense matrix.
+	 */
+	public DenseMatrix toDense() {
+		DenseMatrix res = new DenseMatrix(numRows, numColumns);
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < numColumns; j++)
+				res.data[i][j] = get(i, j);
+		return res;
+	}
+
+	/**
+	 * Make a deep copy in the given precision.
+	 */
+	public FlatMatrix copy(boolean single) {
+		FlatMatrix res = create(numRows, numColumns, single);
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < numColumns; j++)
+				res.set(i, j, get(i, j));
+		return res;
+	}
+
+	/**
+	 * @return whether the entries are stored in float precision
+	 */
+	public abstract boolean isSingle();
+
+	/**
+	 * @return number of rows
+	 */
+	public int numRows() {
+		return numRows;
+	}
+
+	/**
+	 * @return number of columns
+	 */
+	public int numColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * Get the value at entry [row, column]
+	 */
+	public abstract double get(int row, int column);
+
+	/**
+	 * Set a value to entry [row, column]
+	 */
+	public abstract void set(int row, int column, double val);
+
+	/**
+	 * Add a value to entry [row, column]
+	 */
+	public abstract void add(int row, int column, double val);
+
+	/**
+	 * Initialize with small Gaussian values, see {@link DenseMatrix#init(double, double)}.
+	 */
+	public void init(double mean, double sigma) {
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < numColumns; j++)
+				set(i, j, Randoms.gaussian(mean, sigma));
+	}
+
+	/**
+	 * clear and reset all entries to 0
+	 */
+	public abstract void clear();
+
+	/**
+	 * Add all entries of a matrix with the same dimensions to the current one.
+	 */
+	public void selfAdd(FlatMatrix mat) {
+		assert numRows == mat.numRows && numColumns == mat.numColumns;
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < numColumns; j++)
+				add(i, j, mat.get(i, j));
+	}
+
+	/**
+	 * Copy a row into the given array.
+	 */
+	public void copyRow(int row, double[] out) {
+		for (int j = 0; j < numColumns; j++)
+			out[j] = get(row, j);
+	}
+
+	/**
+	 * Set the values of a row from the given array.
+	 */
+	public void setRow(int row, double[] vals) {
+		for (int j = 0; j < numColumns; j++)
+			set(row, j, vals[j]);
+	}
+
+	/**
+	 * @return squared sum of all elements of the matrix.
+	 */
+	public double squaredSum() {
+		double res = 0;
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < numColumns; j++)
+				res += get(i, j) * get(i, j);
+		return res;
+	}
+
+	/**
+	 * row x row of two matrices with the same number of columns
+	 *
+	 * @return inner product of row of the current matrix and nrow of matrix n
+	 */
+	public double dot(int row, FlatMatrix n, int nrow) {
+		assert numColumns == n.numColumns;
+		double res = 0;
+		for (int j = 0; j < numColumns; j++)
+			res += get(row, j) * n.get(nrow, j);
+		return res;
+	}
+
+	/**
+	 * @return inner product of a row with x[xOff, xOff + numColumns)
+	 */
+	public double dot(int row, double[] x, int xOff) {
+		double res = 0;
+		for (int j = 0; j < numColumns; j++)
+			res += get(row, j) * x[xOff + j];
+		return res;
+	}
+
+	/**
+	 * y[yOff, yOff + numColumns) += a * row
+	 */
+	public void axpy(int row, double a, double[] y, int yOff) {
+		for (int j = 0; j < numColumns; j++)
+			y[yOff + j] += a * get(row, j);
+	}
+
+	/**
+	 * Rank-1 update {@code A += alpha * x * x^t} of the current (square) matrix A.
+	 * Entries [f, k] and [k, f] get the same value, so a symmetric A stays symmetric.
+	 */
+	public void syr(double alpha, double[] x) {
+		assert numRows == numColumns;
+		for (int f = 0; f < numRows; f++)
+			for (int k = 0; k < numColumns; k++)
+				add(f, k, x[f] * x[k] * alpha);
+	}
+
+	/**
+	 * Rank-2 update {@code A += alpha * x * x^t + beta * y * y^t} of the current (square)
+	 * matrix A, see {@link Kernels#syr(int, double, double[], int, double, double[], int, double[], int)}.
+	 */
+	public void syr(double alpha, double[] x, double beta, double[] y) {
+		assert numRows == numColumns;
+		for (int f = 0; f < numRows; f++)
+			for (int k = 0; k < numColumns; k++)
+				set(f, k, get(f, k) + x[f] * x[k] * alpha + y[f] * y[k] * beta);
+	}
+
+	/**
+	 * Quadratic form {@code x^t * A * x} of the current (square) matrix A,
+	 * where x is a row of matrix X.
+	 * @param work Scratch space of at least numRows entries.
+	 */
+	public double quadForm(FlatMatrix X, int row, double[] work) {
+		assert numRows == numColumns && numColumns == X.numColumns;
+		double res = 0;
+		for (int i = 0; i < numRows; i++) {
+			double ax = 0;
+			for (int j = 0; j < numColumns; j++)
+				ax += get(i, j) * X.get(row, j);
+			res += ax * X.get(row, i);
+		}
+		return res;
+	}
+
+	/**
+	 * Weighted Gram matrix of the rows {@code sum_r w[r] * x_r * x_r^t},
+	 * i.e. {@code X^t * diag(w) * X}, in double precision.
+	 *
+	 * @param weights
+	 *            weight of each row, or null for unweighted
+	 */
+	public FlatMatrix gram(double[] weights) {
+		Float64 res = new Float64(numColumns, numColumns);
+		if (this instanceof Float64) {
+			Kernels.syrk(numRows, numColumns, ((Float64) this).data, 0, weights, res.data, 0);
+			for (int f = 0; f < numColumns; f++)
+				for (int k = 0; k < f; k++)
+					res.set(k, f, res.get(f, k));
+			return res;
+		}
+		for (int f = 0; f < numColumns; f++) {
+			for (int k = 0; k <= f; k++) {
+				double val = 0;
+				for (int r = 0; r < numRows; r++) {
+					val += weights == null ? get(r, f) * get(r, k)
+							: get(r, f) * get(r, k) * weights[r];
+				}
+				res.set(f, k, val);
+				res.set(k, f, val);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Inner products of selected rows of m with every row of n:
+	 * out[r][j] = m.row(mrows[r]) . n.row(j), see
+	 * {@link DenseMatrix#rowMultAll(DenseMatrix, int[], DenseMatrix, double[][])}.
+	 * @param work Scratch space of at least mrows.length * m.numColumns entries.
+	 */
+	public static void rowMultAll(FlatMatrix m, int[] mrows, FlatMatrix n, double[][] out, 
+			double[] work) {
+		assert m.numColumns == n.numColumns;
+
+		int K = m.numColumns;
+		if (m instanceof Float64 && n instanceof Float64) {
+			// Gather the selected rows and multiply them with n in blocks.
+			for (int r = 0; r < mrows.length; r++)
+				System.arraycopy(((Float64) m).data, mrows[r] * K, work, r * K, K);
+			Kernels.gemm(mrows.length, n.numRows, K, work, 0, ((Float64) n).data, 0, out, 0);
+			return;
+		}
+		double[] a = work;
+		int block = Math.max(4, (1 << 15) / Math.max(1, K)); // ~256KB of n per block
+		for (int j0 = 0; j0 < n.numRows; j0 += block) {
+			int j1 = Math.min(n.numRows, j0 + block);
+			for (int r = 0; r < mrows.length; r++) {
+				m.copyRow(mrows[r], a);
+				n.multRows(a, j0, j1, out[r]);
+			}
+		}
+	}
+
+	/**
+	 * res[j] = a . row(j) for rows j in [start, end), four rows at a time.
+	 */
+	protected abstract void multRows(double[] a, int start, int end, double[] res);
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numRows; i++) {
+			for (int j = 0; j < numColumns; j++)
+				sb.append(get(i, j)).append(j + 1 < numColumns ? "\t" : "\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Flat matrix with entries in double precision.
+	 */
+	public static class Float64 extends FlatMatrix {
+		private static final long serialVersionUID = 8006;
+
+		protected double[] data;
+
+		public Float64(int numRows, int numColumns) {
+			super(numRows, numColumns);
+			data = new double[numRows * numColumns];
+		}
+
+		/**
+		 * @return the underlying row-major array, entry [i, j] at i * numColumns + j
+		 */
+		public double[] getData() {
+			return data;
+		}
+
+		public boolean isSingle() {
+			return false;
+		}
+
+		public double get(int row, int column) {
+			return data[row * numColumns + column];
+		}
+
+		public void set(int row, int column, double val) {
+			data[row * numColumns + column] = val;
+		}
+
+		public void add(int row, int column, double val) {
+			data[row * numColumns + column] += val;
+		}
+
+		public void clear() {
+			Arrays.fill(data, 0);
+		}
+
+		public double dot(int row, FlatMatrix n, int nrow) {
+			if (!(n instanceof Float64))
+				return super.dot(row, n, nrow);
+			return Kernels.dot(numColumns, data, row * numColumns, ((Float64) n).data, nrow * numColumns);
+		}
+
+		public double dot(int row, double[] x, int xOff) {
+			return Kernels.dot(numColumns, data, row * numColumns, x, xOff);
+		}
+
+		public void axpy(int row, double a, double[] y, int yOff) {
+			Kernels.axpy(numColumns, a, data, row * numColumns, y, yOff);
+		}
+
+		public void syr(double alpha, double[] x) {
+			Kernels.syr(numRows, alpha, x, 0, data, 0);
+		}
+
+		public void syr(double alpha, double[] x, double beta, double[] y) {
+			Kernels.syr(numRows, alpha, x, 0, beta, y, 0, data, 0);
+		}
+
+		public double quadForm(FlatMatrix X, int row, double[] work) {
+			if (!(X instanceof Float64))
+				return super.quadForm(X, row, work);
+			double[] x = ((Float64) X).data;
+			Kernels.gemv(numRows, numColumns, data, 0, x, row * numColumns, work, 0);
+			return Kernels.dot(numRows, work, 0, x, row * numColumns);
+		}
+
+		protected void multRows(double[] a, int start, int end, double[] res) {
+			Kernels.gemv(end - start, numColumns, data, start * numColumns, a, 0, res, start);
+		}
+	}
+
+	/**
+	 * Flat matrix with entries in float precision, half the memory of {@link Float64}.
+	 */
+	public static class Float32 extends FlatMatrix {
+		private static final long serialVersionUID = 8007;
+
+		protected float[] data;
+
+		public Float32(int numRows, int numColumns) {
+			super(numRows, numColumns);
+			data = new float[numRows * numColumns];
+		}
+
+		/**
+		 * @return the underlying row-major array, entry [i, j] at i * numColumns + j
+		 */
+		public float[] getData() {
+			return data;
+		}
+
+		public boolean isSingle() {
+			return true;
+		}
+
+		public double get(int row, int column) {
+			return data[row * numColumns + column];
+		}
+
+		public void set(int row, int column, double val) {
+			data[row * numColumns + column] = (float) val;
+		}
+
+		public void add(int row, int column, double val) {
+			int idx = row * numColumns + column;
+			data[idx] = (float) (data[idx] + val);
+		}
+
+		public void clear() {
+			Arrays.fill(data, 0);
+		}
+
+		public double dot(int row, FlatMatrix n, int nrow) {
+			if (!(n instanceof Float32))
+				return super.dot(row, n, nrow);
+			float[] b = ((Float32) n).data;
+			int ao = row * numColumns, bo = nrow * numColumns;
+			double res = 0;
+			for (int j = 0; j < numColumns; j++)
+				res += (double) data[ao + j] * b[bo + j];
+			return res;
+		}
+
+		protected void multRows(double[] a, int start, int end, double[] res) {
+			int K = numColumns;
+			int j = start;
+			for (; j + 3 < end; j += 4) {
+				int o0 = j * K, o1 = o0 + K, o2 = o1 + K, o3 = o2 + K;
+				double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+				for (int k = 0; k < K; k++) {
+					double ak = a[k];
+					s0 += ak * data[o0 + k];
+					s1 += ak * data[o1 + k];
+					s2 += ak * data[o2 + k];
+					s3 += ak * data[o3 + k];
+				}
+				res[j] = s0;
+				res[j + 1] = s1;
+				res[j + 2] = s2;
+				res[j + 3] = s3;
+			}
+			for (; j < end; j++) {
+				int o = j * K;
+				double s = 0;
+				for (int k = 0; k < K; k++)
+					s += a[k] * data[o + k];
+				res[j] = s;
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package data_structure;
+
+/**
+ * Dense linear algebra kernels on double arrays for the latent factor models: dot, axpy,
+ * rank-1 symmetric update, matrix x vector, Gram matrix (syrk) and rows x rows (gemm).
+ * Vectors and matrices are given as an array and an offset; matrices are row-major with
+ * rows of length n (or k) next to each other, as in {@link FlatMatrix.Float64}.
+ *
+ * The kernels run on the JDK Vector API when data_structure.VectorKernels (in src-vector,
+ * compiled with --add-modules jdk.incubator.vector) is on the classpath and the JVM runs
+ * with the jdk.incubator.vector module; otherwise on the scalar loops of this class.
+ * Set -Dkernels=scalar to force the scalar loops.
+ */
+public class Kernels {
+	private static final Kernels impl = load();
+
+	protected Kernels() {
+	}
+
+	private static Kernels load() {
+		if (!"scalar".equals(System.getProperty("kernels"))
+				&& ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (Kernels) Class.forName("data_structure.VectorKernels")
+						.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// Not compiled in, use the scalar loops.
+			}
+		}
+		return new Kernels();
+	}
+
+	/**
+	 * @return The name of the implementation in use.
+	 */
+	public static String implementation() {
+		return impl.name();
+	}
+
+	/** @return x . y over n entries. */
+	public static double dot(int n, double[] x, int xOff, double[] y, int yOff) {
+		return impl.ddot(n, x, xOff, y, yOff);
+	}
+
+	/** y += a * x over n entries. */
+	public static void axpy(int n, double a, double[] x, int xOff, double[] y, int yOff) {
+		impl.daxpy(n, a, x, xOff, y, yOff);
+	}
+
+	/** y = a * x + b * y over n entries. */
+	public static void axpby(int n, double a, double[] x, int xOff, double b, double[] y, int yOff) {
+		impl.daxpby(n, a, x, xOff, b, y, yOff);
+	}
+
+	/**
+	 * A += alpha * x * x^T for the n x n matrix A. Entry [f, k] gets (x_f * x_k) * alpha,
+	 * so a symmetric A stays exactly symmetric.
+	 */
+	public static void syr(int n, double alpha, double[] x, int xOff, double[] A, int aOff) {
+		impl.dsyr(n, alpha, x, xOff, A, aOff);
+	}
+
+	/**
+	 * A += alpha * x * x^T + beta * y * y^T for the n x n matrix A in one pass, e.g. to
+	 * replace the outer product of a row by the one of its new value in a Gram matrix.
+	 * Entry [f, k] gets (A + (x_f * x_k) * alpha) + (y_f * y_k) * beta.
+	 */
+	public static void syr(int n, double alpha, double[] x, int xOff, double beta, double[] y, int yOff,
+			double[] A, int aOff) {
+		impl.dsyr(n, alpha, x, xOff, beta, y, yOff, A, aOff);
+	}
+
+	/** y = A * x for the m x n matrix A. */
+	public static void gemv(int m, int n, double[] A, int aOff, double[] x, int xOff,
+			double[] y, int yOff) {
+		impl.dgemv(m, n, A, aOff, x, xOff, y, yOff);
+	}
+
+	/**
+	 * C += A^T * diag(w) * A for the m x n matrix A and the n x n matrix C, i.e. the
+	 * weighted Gram matrix of the rows of A; w is null for unweighted. Only the lower
+	 * triangle (k <= f) of C is updated.
+	 */
+	public static void syrk(int m, int n, double[] A, int aOff, double[] w, double[] C, int cOff) {
+		impl.dsyrk(m, n, A, aOff, w, C, cOff);
+	}
+
+	/**
+	 * C[i][cCol + j] = A_i . B_j for the rows of the m x k matrix A and the n x k matrix B,
+	 * i.e. a block of A * B^T, e.g. the scores of m users for n items.
+	 */
+	public static void gemm(int m, int n, int k, double[] A, int aOff, double[] B, int bOff,
+			double[][] C, int cCol) {
+		impl.dgemm(m, n, k, A, aOff, B, bOff, C, cCol);
+	}
+
+	/*========================================
+	 * Scalar implementation
+	 *========================================*/
+	protected String name() {
+		return "scalar";
+	}
+
+	protected double ddot(int n, double[] x, int xOff, double[] y, int yOff) {
+		double sum = 0;
+		for (int k = 0; k < n; k ++)
+			sum += x[xOff + k] * y[yOff + k];
+		return sum;
+	}
+
+	protected void daxpy(int n, double a, double[] x, int xOff, double[] y, int yOff) {
+		for (int k = 0; k < n; k ++)
+			y[yOff + k] += a * x[xOff + k];
+	}
+
+	protected void daxpby(int n, double a, double[] x, int xOff, double b, double[] y, int yOff) {
+		for (int k = 0; k < n; k ++)
+			y[yOff + k] = a * x[xOff + k] + b * y[yOff + k];
+	}
+
+	protected void dsyr(int n, double alpha, double[] x, int xOff, double[] A, int aOff) {
+		for (int f = 0; f < n; f ++) {
+			double xf = x[xOff + f];
+			int row = aOff + f * n;
+			for (int k = 0; k < n; k ++)
+				A[row + k] += xf * x[xOff + k] * alpha;
+		}
+	}
+
+	protected void dsyr(int n, double alpha, double[] x, int xOff, double beta, double[] y, int yOff,
+			double[] A, int aOff) {
+		for (int f = 0; f < n; f ++) {
+			double xf = x[xOff + f], yf = y[yOff + f];
+			int row = aOff + f * n;
+			for (int k = 0; k < n; k ++)
+				A[row + k] = A[row + k] + xf * x[xOff + k] * alpha + yf * y[yOff + k] * beta;
+		}
+	}
+
+	protected void dgemv(int m, int n, double[] A, int aOff, double[] x, int xOff,
+			double[] y, int yOff) {
+		int i = 0;
+		// Four rows at a time, each load of x serves four rows.
+		for (; i + 3 < m; i += 4) {
+			int o0 = aOff + i * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			for (int k = 0; k < n; k ++) {
+				double xk = x[xOff + k];
+				s0 += xk * A[o0 + k];
+				s1 += xk * A[o1 + k];
+				s2 += xk * A[o2 + k];
+				s3 += xk * A[o3 + k];
+			}
+			y[yOff + i] = s0;
+			y[yOff + i + 1] = s1;
+			y[yOff + i + 2] = s2;
+			y[yOff + i + 3] = s3;
+		}
+		for (; i < m; i ++)
+			y[yOff + i] = ddot(n, x, xOff, A, aOff + i * n);
+	}
+
+	protected void dsyrk(int m, int n, double[] A, int aOff, double[] w, double[] C, int cOff) {
+		int r = 0;
+		// Four rows of A per pass over C.
+		for (; r + 3 < m; r += 4) {
+			int o0 = aOff + r * n, o1 = o0 + n, o2 = o1 + n, o3 = o2 + n;
+			double w0 = w == null ? 1 : w[r], w1 = w == null ? 1 : w[r + 1];
+			double w2 = w == null ? 1 : w[r + 2], w3 = w == null ? 1 : w[r + 3];
+			for (int f = 0; f < n; f ++) {
+				double a0 = A[o0 + f], a1 = A[o1 + f], a2 = A[o2 + f], a3 = A[o3 + f];
+				int row = cOff + f * n;
+				for (int k = 0; k <= f; k ++) {
+					C[row + k] = C[row + k] + a0 * A[o0 + k] * w0 + a1 * A[o1 + k] * w1
+							+ a2 * A[o2 + k] * w2 + a3 * A[o3 + k] * w3;
+				}
+			}
+		}
+		for (; r < m; r ++) {
+			int o = aOff + r * n;
+			double wr = w == null ? 1 : w[r];
+			for (int f = 0; f < n; f ++) {
+				double af = A[o + f];
+				int row = cOff + f * n;
+				for (int k = 0; k <= f; k ++)
+					C[row + k] = C[row + k] + af * A[o + k] * wr;
+			}
+		}
+	}
+
+	protected void dgemm(int m, int n, int k, double[] A, int aOff, double[] B, int bOff,
+			double[][] C, int cCol) {
+		// Blocks of ~256KB of B, each multiplied with all rows of A while it is in cache.
+		int block = Math.max(4, (1 << 15) / Math.max(1, k));
+		for (int j0 = 0; j0 < n; j0 += block) {
+			int rows = Math.min(n, j0 + block) - j0;
+			for (int i = 0; i < m; i ++)
+				dgemv(rows, k, B, bOff + j0 * k, A, aOff + i * k, C[i], cCol + j0);
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package data_structure;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import utils.SearchScratch;
+import utils.TopKHeap;
+import utils.WorkPool;
+
+/**
+ * Inverted file (IVF) index over the item factors for approximate maximum inner product
+ * search (MIPS), i.e. the top-K items by u . v_i without scoring every item.
+ *
+ * MIPS is reduced to nearest neighbor search by norm augmentation [Bachrach et al. RecSys 2014]:
+ * item v becomes v' = (v, sqrt(M^2 - |v|^2)) with M the largest item norm, and query q becomes
+ * q' = (q, 0), so that |q' - v'|^2 = |q|^2 + M^2 - 2 q . v. The augmented items are clustered by
+ * k-means into lists; a query ranks the centroids by distance to q', and scores the items of
+ * the nprobe closest lists exactly.
+ *
+ * The items of a list are stored next to each other, row-major, so that a list is scored by
+ * one {@link Kernels#gemv}. Updating an item overwrites its vector in place, and moves it to
+ * the list of its closest centroid if that changed. Updates do not move the centroids, so
+ * rebuild the index once many items have drifted. Searches may run in parallel, but not
+ * concurrently with updates.
+ */
+public class MipsIndex {
+	/** Number of lists scored by a query, trading recall (see {@link #recall}) for latency. */
+	public int nprobe;
+
+	private static final int KMEANS_ITER = 10;
+	// Points per list sampled to train the centroids.
+	private static final int SAMPLE_PER_LIST = 64;
+	// Points assigned together, so that each block of centroids is read once per BLOCK points.
+	private static final int BLOCK = 32;
+	// Slots of the SearchScratch arrays: centroid scores, and item scores of a list.
+	private static final int SCORES = 0, ITEMS = 1;
+
+	private final int itemCount, factors, lists;
+	/** The squared norm the items are augmented to (M^2). */
+	private final double maxNorm2;
+
+	// Centroid c: factors at centroids[c * factors], augmented coordinate centroidAug[c] and
+	// centroidBias[c] = -|c'|^2 / 2, so the closest centroid to (x, a) maximizes
+	// x . c + a * centroidAug[c] + centroidBias[c].
+	private double[] centroids, centroidAug, centroidBias;
+
+	// List c: items listIds[c][0..listSize[c]), with their factors in listVecs[c].
+	private int[] listSize;
+	private int[][] listIds;
+	private double[][] listVecs;
+	// Where each item is: its list and position in the list.
+	private int[] itemList, itemPos;
+
+	/**
+	 * Build the index over the rows of V, in parallel.
+	 * @param lists Number of lists, 0 for about sqrt(V.numRows()).
+	 * @param threads Number of threads to cluster and assign the items.
+	 */
+	public MipsIndex(FlatMatrix V, int lists, int threads) {
+		this.itemCount = V.numRows();
+		this.factors = V.numColumns();
+		if (lists <= 0)	lists = (int) Math.ceil(Math.sqrt(itemCount));
+		this.lists = Math.max(1, Math.min(lists, itemCount));
+		this.nprobe = Math.min(this.lists, Math.max(8, this.lists / 16));
+		threads = Math.max(1, threads);
+
+		double max = 0;
+		double[] row = new double[factors];
+		for (int i = 0; i < itemCount; i ++) {
+			V.copyRow(i, row);
+			max = Math.max(max, Kernels.dot(factors, row, 0, row, 0));
+		}
+		maxNorm2 = max;
+
+		train(V, threads);
+		assign(V, threads);
+	}
+
+	/*========================================
+	 * Building
+	 *========================================*/
+	// k-means (Lloyd) over a sample of the augmented items.
+	private void train(FlatMatrix V, int threads) {
+		Random rand = new Random(0);
+		int count = Math.min(itemCount, SAMPLE_PER_LIST * lists);
+		// The first count items of a partial shuffle.
+		int[] order = new int[itemCount];
+		for (int i = 0; i < itemCount; i ++)
+			order[i] = i;
+		for (int k = 0; k < count; k ++) {
+			int r = k + rand.nextInt(itemCount - k);
+			int tmp = order[k];
+			order[k] = order[r];
+			order[r] = tmp;
+		}
+		final double[] sample = new double[count * factors];
+		final double[] sampleAug = new double[count];
+		double[] row = new double[factors];
+		for (int p = 0; p < count; p ++) {
+			V.copyRow(order[p], row);
+			System.arraycopy(row, 0, sample, p * factors, factors);
+			sampleAug[p] = augment(row, 0);
+		}
+
+		// Start from distinct sampled items.
+		centroids = new double[lists * factors];
+		centroidAug = new double[lists];
+		centroidBias = new double[lists];
+		System.arraycopy(sample, 0, centroids, 0, lists * factors);
+		System.arraycopy(sampleAug, 0, centroidAug, 0, lists);
+		updateBias();
+
+		final int stride = factors + 1;
+		final double[][] sums = new double[threads][lists * stride];
+		final int[][] counts = new int[threads][lists];
+		for (int iter = 0; iter < KMEANS_ITER; iter ++) {
+			for (int t = 0; t < threads; t ++) {
+				Arrays.fill(sums[t], 0);
+				Arrays.fill(counts[t], 0);
+			}
+			WorkPool.run(threads, count, null, 1, new WorkPool.RangeTask() {
+				public void run(int worker, int start, int end) {
+					double[] sum = sums[worker];
+					int[] size = counts[worker];
+					double[][] scores = new double[BLOCK][lists];
+					int[] nearest = new int[BLOCK];
+					for (int p0 = start; p0 < end; p0 += BLOCK) {
+						int m = Math.min(BLOCK, end - p0);
+						closest(sample, p0, m, sampleAug, scores, nearest);
+						for (int r = 0; r < m; r ++) {
+							int p = p0 + r, c = nearest[r];
+							size[c] ++;
+							Kernels.axpy(factors, 1, sample, p * factors, sum, c * stride);
+							sum[c * stride + factors] += sampleAug[p];
+						}
+					}
+				}
+			});
+
+			// New centroids: the means of their points, or a random point if empty.
+			for (int c = 0; c < lists; c ++) {
+				int size = 0;
+				for (int t = 0; t < threads; t ++)
+					size += counts[t][c];
+				if (size == 0) {
+					int p = rand.nextInt(count);
+					System.arraycopy(sample, p * factors, centroids, c * factors, factors);
+					centroidAug[c] = sampleAug[p];
+					continue;
+				}
+				Arrays.fill(centroids, c * factors, (c + 1) * factors, 0);
+				centroidAug[c] = 0;
+				for (int t = 0; t < threads; t ++) {
+					Kernels.axpy(factors, 1.0 / size, sums[t], c * stride, centroids, c * factors);
+					centroidAug[c] += sums[t][c * stride + factors] / size;
+				}
+			}
+			updateBias();
+		}
+	}
+
+	// Put every item in the list of its closest centroid.
+	private void assign(final FlatMatrix V, int threads) {
+		itemList = new int[itemCount];
+		itemPos = new int[itemCount];
+		WorkPool.run(threads, itemCount, null, 1, new WorkPool.RangeTask() {
+			public void run(int worker, int start, int end) {
+				double[] rows = new double[BLOCK * factors], aug = new double[BLOCK];
+				double[] row = new double[factors];
+				double[][] scores = new double[BLOCK][lists];
+				int[] nearest = new int[BLOCK];
+				for (int i0 = start; i0 < end; i0 += BLOCK) {
+					int m = Math.min(BLOCK, end - i0);
+					for (int r = 0; r < m; r ++) {
+						V.copyRow(i0 + r, row);
+						System.arraycopy(row, 0, rows, r * factors, factors);
+						aug[r] = augment(row, 0);
+					}
+					closest(rows, 0, m, aug, scores, nearest);
+					System.arraycopy(nearest, 0, itemList, i0, m);
+				}
+			}
+		});
+
+		listSize = new int[lists];
+		for (int i = 0; i < itemCount; i ++)
+			listSize[itemList[i]] ++;
+		listIds = new int[lists][];
+		listVecs = new double[lists][];
+		for (int c = 0; c < lists; c ++) {
+			// Some room for the items moved in by updates.
+			int capacity = listSize[c] + (listSize[c] >> 3) + 2;
+			listIds[c] = new int[capacity];
+			listVecs[c] = new double[capacity * factors];
+			listSize[c] = 0;
+		}
+		double[] row = new double[factors];
+		for (int i = 0; i < itemCount; i ++) {
+			V.copyRow(i, row);
+			append(itemList[i], i, row);
+		}
+	}
+
+	private void updateBias() {
+		for (int c = 0; c < lists; c ++) {
+			int off = c * factors;
+			centroidBias[c] = -(Kernels.dot(factors, centroids, off, centroids, off)
+					+ centroidAug[c] * centroidAug[c]) / 2;
+		}
+	}
+
+	// The augmented coordinate of x, 0 for items grown beyond M by updates.
+	private double augment(double[] x, int xOff) {
+		return Math.sqrt(Math.max(0, maxNorm2 - Kernels.dot(factors, x, xOff, x, xOff)));
+	}
+
+	// The closest centroid to the augmented point (x, a); scores is scratch of lists entries.
+	private int closest(double[] x, int xOff, double a, double[] scores) {
+		Kernels.gemv(lists, factors, centroids, 0, x, xOff, scores, 0);
+		return best(scores, a);
+	}
+
+	// The closest centroids of the points p0..p0+m of X (and aug), into nearest[0..m).
+	private void closest(double[] X, int p0, int m, double[] aug, double[][] scores, int[] nearest) {
+		Kernels.gemm(m, lists, factors, X, p0 * factors, centroids, 0, scores, 0);
+		for (int r = 0; r < m; r ++)
+			nearest[r] = best(scores[r], aug[p0 + r]);
+	}
+
+	private int best(double[] scores, double a) {
+		int best = 0;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c < lists; c ++) {
+			double score = scores[c] + a * centroidAug[c] + centroidBias[c];
+			if (score > bestScore) {
+				best = c;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private void append(int c, int i, double[] x) {
+		int size = listSize[c];
+		if (size == listIds[c].length) {
+			int capacity = size + (size >> 1) + 2;
+			listIds[c] = Arrays.copyOf(listIds[c], capacity);
+			listVecs[c] = Arrays.copyOf(listVecs[c], capacity * factors);
+		}
+		listIds[c][size] = i;
+		System.arraycopy(x, 0, listVecs[c], size * factors, factors);
+		itemList[i] = c;
+		itemPos[i] = size;
+		listSize[c] ++;
+	}
+
+	/*========================================
+	 * Updates and search
+	 *========================================*/
+	/**
+	 * Set the factors of item i, e.g. after an online update of the model changed them.
+	 */
+	public void update(int i, double[] x) {
+		int c = closest(x, 0, augment(x, 0), SearchScratch.get().doubles(SCORES, lists));
+		int old = itemList[i], pos = itemPos[i];
+		if (c == old) {
+			System.arraycopy(x, 0, listVecs[c], pos * factors, factors);
+			return;
+		}
+		// Move the last item of the old list into the hole.
+		int last = -- listSize[old];
+		if (pos != last) {
+			int moved = listIds[old][last];
+			listIds[old][pos] = moved;
+			System.arraycopy(listVecs[old], last * factors, listVecs[old], pos * factors, factors);
+			itemPos[moved] = pos;
+		}
+		append(c, i, x);
+	}
+
+	/**
+	 * Approximate top-K items for the query q (e.g. the factors of a user), from the nprobe
+	 * lists closest to q. K is the capacity of the heap.
+	 * @return The number of items found, read from the heap sorted by descending score.
+	 */
+	public int search(double[] q, TopKHeap heap) {
+		SearchScratch s = SearchScratch.get();
+		// Closest centroids to (q, 0): the largest q . c - |c'|^2 / 2.
+		double[] scores = s.doubles(SCORES, lists);
+		Kernels.gemv(lists, factors, centroids, 0, q, 0, scores, 0);
+		TopKHeap probes = s.heap(Math.max(1, Math.min(nprobe, lists)));
+		probes.clear();
+		for (int c = 0; c < lists; c ++)
+			probes.add(c, scores[c] + centroidBias[c]);
+		heap.clear();
+		for (int k = 0; k < probes.size(); k ++)
+			scan(probes.id(k), q, heap, s);
+		return heap.sortDescending();
+	}
+
+	/**
+	 * Exact top-K items for the query q, by scoring all items.
+	 * @return The same as {@link #search(double[], TopKHeap)}.
+	 */
+	public int exact(double[] q, TopKHeap heap) {
+		SearchScratch s = SearchScratch.get();
+		heap.clear();
+		for (int c = 0; c < lists; c ++)
+			scan(c, q, heap, s);
+		return heap.sortDescending();
+	}
+
+	private void scan(int c, double[] q, TopKHeap heap, SearchScratch s) {
+		int size = listSize[c];
+		double[] scores = s.doubles(ITEMS, size);
+		Kernels.gemv(size, factors, listVecs[c], 0, q, 0, scores, 0);
+		int[] ids = listIds[c];
+		for (int p = 0; p < size; p ++)
+			heap.add(ids[p], scores[p]);
+	}
+
+	/**
+	 * Recall@K of the index against the exact scan: the share of the exact top-K items of the
+	 * users that {@link #search(double[], TopKHeap)} returns.
+	 * @param U Factors of the users, row u for user u.
+	 */
+	public double recall(FlatMatrix U, int[] users, int K) {
+		TopKHeap exact = new TopKHeap(K), approx = new TopKHeap(K);
+		boolean[] found = new boolean[itemCount];
+		double[] q = new double[factors];
+		long hits = 0, total = 0;
+		for (int u : users) {
+			U.copyRow(u, q);
+			int m = search(q, approx);
+			for (int k = 0; k < m; k ++)
+				found[approx.id(k)] = true;
+			int n = exact(q, exact);
+			for (int k = 0; k < n; k ++)
+				if (found[exact.id(k)])	hits ++;
+			for (int k = 0; k < m; k ++)
+				found[approx.id(k)] = false;
+			total += n;
+		}
+		return total == 0 ? 1 : (double) hits / total;
+	}
+
+	public int lists() {
+		return lists;
+	}
+
+	public int factors() {
+		return factors;
+	}
+}
@@ -0,0 +1,133 @@
+package data_structure;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+import utils.SearchScratch;
+import utils.TopKHeap;
+
+/**
+ * Exact top-K items by inner product with a query, pruning items that cannot enter the top-K.
+ *
+ * Items are stored by decreasing norm, so the scan stops at the first item whose
+ * Cauchy-Schwarz bound |q| |v_i| is not above the current K-th score: no later item can
+ * do better. Within an item, the dot product is summed a segment of SEGMENT dimensions at a
+ * time, and abandoned once the partial sum plus the bound |q_rest| |v_i,rest| on the remaining
+ * dimensions is not above the K-th score. Dimensions are permuted by decreasing energy
+ * (sum of squares over the items), so that the first segments carry most of the product.
+ *
+ * The index is a copy of the factors: rebuild it after the model changes. Searches may run
+ * in parallel.
+ */
+public class PrunedTopK {
+	// Dimensions summed between two partial bounds.
+	private static final int SEGMENT = 16;
+	// Slots of the SearchScratch arrays: the permuted query, and its tail norms.
+	private static final int QUERY = 0, TAILS = 1;
+
+	private final int itemCount, factors, segments;
+	// Dimension f of the index is dimension perm[f] of the factors.
+	private final int[] perm;
+	// Item p by decreasing norm: ids[p], norms[p], permuted factors at vecs[p * factors], and
+	// tails[p * segments + s] = norm of the dimensions after segment s.
+	private final int[] ids;
+	private final double[] norms, vecs, tails;
+
+	public PrunedTopK(FlatMatrix V) {
+		itemCount = V.numRows();
+		factors = V.numColumns();
+		segments = Math.max(1, (factors + SEGMENT - 1) / SEGMENT);
+
+		double[] row = new double[factors], energy = new double[factors];
+		double[] itemNorms = new double[itemCount];
+		for (int i = 0; i < itemCount; i ++) {
+			V.copyRow(i, row);
+			for (int f = 0; f < factors; f ++)
+				energy[f] += row[f] * row[f];
+			itemNorms[i] = Math.sqrt(Kernels.dot(factors, row, 0, row, 0));
+		}
+		perm = order(energy);
+		ids = order(itemNorms);
+
+		norms = new double[itemCount];
+		vecs = new double[itemCount * factors];
+		tails = new double[itemCount * segments];
+		for (int p = 0; p < itemCount; p ++) {
+			V.copyRow(ids[p], row);
+			norms[p] = itemNorms[ids[p]];
+			int off = p * factors;
+			for (int f = 0; f < factors; f ++)
+				vecs[off + f] = row[perm[f]];
+			tail(vecs, off, tails, p * segments);
+		}
+	}
+
+	// Indices of the values by decreasing value.
+	private static int[] order(final double[] values) {
+		Integer[] order = new Integer[values.length];
+		for (int k = 0; k < values.length; k ++)
+			order[k] = k;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(values[b], values[a]);
+			}
+		});
+		int[] res = new int[values.length];
+		for (int k = 0; k < values.length; k ++)
+			res[k] = order[k];
+		return res;
+	}
+
+	// out[outOff + s] = norm of x[xOff + (s + 1) * SEGMENT ..] for each segment s.
+	private void tail(double[] x, int xOff, double[] out, int outOff) {
+		double sum = 0;
+		for (int s = segments - 1; s >= 0; s --) {
+			out[outOff + s] = Math.sqrt(sum);
+			int from = s * SEGMENT, to = Math.min(factors, from + SEGMENT);
+			sum += Kernels.dot(to - from, x, xOff + from, x, xOff + from);
+		}
+	}
+
+	/**
+	 * Top-K items for the query q (e.g. the factors of a user), K being the capacity of the
+	 * heap. Items in excluded (may be null) are skipped.
+	 * @return The number of items found, read from the heap sorted by descending score.
+	 */
+	public int search(double[] q, TopKHeap heap, BitSet excluded) {
+		SearchScratch s = SearchScratch.get();
+		double[] query = s.doubles(QUERY, factors), qTails = s.doubles(TAILS, segments);
+		for (int f = 0; f < factors; f ++)
+			query[f] = q[perm[f]];
+		tail(query, 0, qTails, 0);
+		double qNorm = Math.sqrt(Kernels.dot(factors, query, 0, query, 0));
+
+		heap.clear();
+		for (int p = 0; p < itemCount; p ++) {
+			int i = ids[p];
+			if (excluded != null && excluded.get(i))	continue;
+			int off = p * factors;
+			if (!heap.isFull()) {
+				heap.add(i, Kernels.dot(factors, query, 0, vecs, off));
+				continue;
+			}
+			double min = heap.minScore();
+			// Items come by decreasing norm, so neither this one nor the next can enter.
+			if (qNorm * norms[p] <= min)	break;
+			double score = 0;
+			int seg = 0;
+			for (; seg < segments; seg ++) {
+				int from = seg * SEGMENT, to = Math.min(factors, from + SEGMENT);
+				score += Kernels.dot(to - from, query, from, vecs, off + from);
+				if (seg < segments - 1 && score + qTails[seg] * tails[p * segments + seg] <= min)
+					break;
+			}
+			if (seg == segments)	heap.add(i, score);
+		}
+		return heap.sortDescending();
+	}
+
+	public int factors() {
+		return factors;
+	}
+}
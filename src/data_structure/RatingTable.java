@@ -0,0 +1,139 @@
+package data_structure;
+
+import java.util.Arrays;
+
+/**
+ * Ratings stored column by column in primitive arrays (one entry per rating),
+ * instead of one {@link Rating} object per line.
+ */
+public class RatingTable {
+	/** The number of ratings. */
+	public int count;
+	/** Number of users / items, i.e. the largest id + 1. */
+	public int userCount, itemCount;
+
+	public int[] users;
+	public int[] items;
+	public float[] scores;
+	public long[] timestamps;
+
+	/**
+	 * Construct an empty table with the given capacity.
+	 */
+	public RatingTable(int capacity) {
+		users = new int[capacity];
+		items = new int[capacity];
+		scores = new float[capacity];
+		timestamps = new long[capacity];
+	}
+
+	/**
+	 * Append a rating, growing the columns if needed.
+	 */
+	public void add(int userId, int itemId, float score, long timestamp) {
+		if (count == users.length)
+			resize(Math.max(16, count * 2));
+		users[count] = userId;
+		items[count] = itemId;
+		scores[count] = score;
+		timestamps[count] = timestamp;
+		userCount = Math.max(userCount, userId + 1);
+		itemCount = Math.max(itemCount, itemId + 1);
+		count ++;
+	}
+
+	/**
+	 * Append all ratings of another table.
+	 */
+	public void addAll(RatingTable other) {
+		if (count + other.count > users.length)
+			resize(count + other.count);
+		System.arraycopy(other.users, 0, users, count, other.count);
+		System.arraycopy(other.items, 0, items, count, other.count);
+		System.arraycopy(other.scores, 0, scores, count, other.count);
+		System.arraycopy(other.timestamps, 0, timestamps, count, other.count);
+		count += other.count;
+		userCount = Math.max(userCount, other.userCount);
+		itemCount = Math.max(itemCount, other.itemCount);
+	}
+
+	private void resize(int capacity) {
+		users = Arrays.copyOf(users, capacity);
+		items = Arrays.copyOf(items, capacity);
+		scores = Arrays.copyOf(scores, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+	}
+
+	/**
+	 * @return The k-th rating as an object.
+	 */
+	public Rating get(int k) {
+		return new Rating(users[k], items[k], scores[k], timestamps[k]);
+	}
+
+	/**
+	 * Positions of the ratings sorted by time (small->large).
+	 * The sort is stable, so ratings with the same timestamp keep the file order.
+	 */
+	public int[] sortByTime() {
+		int[] order = new int[count];
+		for (int k = 0; k < count; k ++)
+			order[k] = k;
+		sortByTime(order, 0, count);
+		return order;
+	}
+
+	/**
+	 * Positions of the ratings grouped by user, and sorted by time (small->large) within a user.
+	 * @param userPtr Filled with the ranges: the ratings of user u are at [userPtr[u], userPtr[u+1]).
+	 * 	Must have userCount + 1 entries.
+	 */
+	public int[] groupByUser(int[] userPtr) {
+		for (int k = 0; k < count; k ++)
+			userPtr[users[k] + 1] ++;
+		for (int u = 0; u < userCount; u ++)
+			userPtr[u + 1] += userPtr[u];
+		int[] order = new int[count];
+		int[] next = Arrays.copyOf(userPtr, userCount);
+		for (int k = 0; k < count; k ++)
+			order[next[users[k]] ++] = k;
+		for (int u = 0; u < userCount; u ++)
+			sortByTime(order, userPtr[u], userPtr[u + 1]);
+		return order;
+	}
+
+	/**
+	 * Stable sort of order[from, to) by the timestamps of the positions.
+	 */
+	public void sortByTime(int[] order, int from, int to) {
+		mergeSort(order, Arrays.copyOfRange(order, from, to), from, to, -from);
+	}
+
+	// Top-down merge sort of dst[from, to), with src holding the same values at offset shift.
+	private void mergeSort(int[] dst, int[] src, int from, int to, int shift) {
+		int len = to - from;
+		if (len < 16) {  // insertion sort for short runs
+			for (int i = from + 1; i < to; i ++) {
+				int v = dst[i];
+				int j = i - 1;
+				while (j >= from && timestamps[dst[j]] > timestamps[v]) {
+					dst[j + 1] = dst[j];
+					j --;
+				}
+				dst[j + 1] = v;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		// sort both halves into src, then merge them back into dst
+		mergeSort(src, dst, from + shift, mid + shift, -shift);
+		mergeSort(src, dst, mid + shift, to + shift, -shift);
+		int p = from + shift, q = mid + shift;
+		for (int i = from; i < to; i ++) {
+			if (q >= to + shift || (p < mid + shift && timestamps[src[p]] <= timestamps[src[q]]))
+				dst[i] = src[p ++];
+			else
+				dst[i] = src[q ++];
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package data_structure;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The items of each user, as sorted rows: the rows of a {@link CSRMatrix} snapshot, plus the
+ * items added since, kept sorted per user. Membership is a binary search, and the items of a
+ * user are walked without boxing or hashing.
+ */
+public class UserItems {
+	private final int[] rowPtr, colIdx;
+	// Items added to user u since the snapshot: added[u][0..addedSize[u]), sorted.
+	private final int[][] added;
+	private final int[] addedSize;
+
+	public UserItems(CSRMatrix ratings) {
+		rowPtr = ratings.rowPtr();
+		colIdx = ratings.colIndex();
+		int userCount = ratings.length()[0];
+		added = new int[userCount][];
+		addedSize = new int[userCount];
+	}
+
+	public boolean contains(int u, int i) {
+		if (Arrays.binarySearch(colIdx, rowPtr[u], rowPtr[u + 1], i) >= 0)	return true;
+		return addedSize[u] > 0 && Arrays.binarySearch(added[u], 0, addedSize[u], i) >= 0;
+	}
+
+	/**
+	 * Add item i to user u.
+	 * @return false if u already has i.
+	 */
+	public boolean add(int u, int i) {
+		if (Arrays.binarySearch(colIdx, rowPtr[u], rowPtr[u + 1], i) >= 0)	return false;
+		int size = addedSize[u];
+		if (added[u] == null)	added[u] = new int[4];
+		int pos = Arrays.binarySearch(added[u], 0, size, i);
+		if (pos >= 0)	return false;
+		pos = -pos - 1;
+		if (size == added[u].length)	added[u] = Arrays.copyOf(added[u], 2 * size);
+		System.arraycopy(added[u], pos, added[u], pos + 1, size - pos);
+		added[u][pos] = i;
+		addedSize[u] = size + 1;
+		return true;
+	}
+
+	/** @return The number of items of user u. */
+	public int size(int u) {
+		return rowPtr[u + 1] - rowPtr[u] + addedSize[u];
+	}
+
+	/** Set (or clear) the items of user u in set. */
+	public void mark(int u, BitSet set, boolean value) {
+		for (int k = rowPtr[u]; k < rowPtr[u + 1]; k ++)
+			set.set(colIdx[k], value);
+		for (int k = 0; k < addedSize[u]; k ++)
+			set.set(added[u][k], value);
+	}
+}
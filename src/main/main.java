@@ -20,9 +20,12 @@ import java.util.TreeSet;
 
 import algorithms.*;
 import utils.DatasetUtil;
+import utils.BinaryDataset;
+import utils.RatingParser;
+import data_structure.CSRMatrix;
 import data_structure.DenseVector;
 import data_structure.Rating;
-import data_structure.SparseMatrix;
+import data_structure.RatingTable;
 import data_structure.SparseVector;
 import utils.Printer;
 import utils.CommonUtils;
@@ -40,7 +43,7 @@ import java.util.ArrayList;
 public abstract class main {
 
 	/** Rating matrix for training. */ 
-	public static SparseMatrix trainMatrix;
+	public static CSRMatrix trainMatrix;
 	
 	/** Test ratings (sorted by time for global split). */
 	public static ArrayList<Rating> testRatings;
@@ -53,68 +56,66 @@ public abstract class main {
 	
 	public static void ReadRatings_GlobalSplit(String ratingFile, double testRatio)
 			throws IOException {
-		userCount = itemCount = 0;
 		System.out.println("Global splitting with testRatio " + testRatio);
-		// Step 1. Construct data structure for sorting.
+		// Step 1. Read the ratings into primitive columns.
+		System.out.println ("Data\t" + ratingFile);
 		System.out.print("Read ratings and sort.");
 		long startTime = System.currentTimeMillis();
-		ArrayList<Rating> ratings = new ArrayList<Rating>();
-		BufferedReader reader = new BufferedReader(
-				new InputStreamReader(new FileInputStream(ratingFile)));
-		String line;
-		while((line = reader.readLine()) != null) {
-			Rating rating = new Rating(line);
-			ratings.add(rating);
-			userCount = Math.max(userCount, rating.userId);
-			itemCount = Math.max(itemCount, rating.itemId);
-		}
-		reader.close();
-		userCount ++;
-		itemCount ++;
+		RatingTable ratings = RatingParser.parse(ratingFile, threadNum);
+		SplitRatings_Global(ratings, testRatio, startTime);
+	}
+	
+	/**
+	 * Split ratings (e.g. generated ones) by time: the latest testRatio of them are the test stream.
+	 * @param startTime When loading started, for the timing print.
+	 */
+	public static void SplitRatings_Global(RatingTable ratings, double testRatio, long startTime) {
+		userCount = ratings.userCount;
+		itemCount = ratings.itemCount;
 		
 		// Step 2. Sort the ratings by time (small->large).
-		Comparator<Rating> c = new Comparator<Rating>() {
-			public int compare(Rating o1, Rating o2) {
-				if (o1.timestamp - o2.timestamp > 0)	return 1;
-				else if (o1.timestamp - o2.timestamp < 0)	return -1;
-				else return 0;
-			}
-		};
-		Collections.sort(ratings, c);
+		int[] order = ratings.sortByTime();
 		System.out.printf("[%s]\n", Printer.printTime(
 				System.currentTimeMillis() - startTime));
 		
 		// Step 3. Generate trainMatrix and testStream
 		System.out.printf("Generate trainMatrix and testStream.");
 		startTime = System.currentTimeMillis();
-		trainMatrix = new SparseMatrix(userCount, itemCount);
 		testRatings = new ArrayList<Rating>();
 		
-		int testCount = (int) (ratings.size() * testRatio);
-		int count = 0;
-		for (Rating rating : ratings) {
-			if (count < ratings.size() - testCount) {  // train
-				trainMatrix.setValue(rating.userId, rating.itemId, 1);
+		int testCount = (int) (ratings.count * testRatio);
+		int trainCount = ratings.count - testCount;
+		int[] users = new int[trainCount], items = new int[trainCount];
+		double[] values = new double[trainCount];
+		for (int k = 0; k < ratings.count; k ++) {
+			int r = order[k];
+			if (k < trainCount) {  // train
+				users[k] = ratings.users[r];
+				items[k] = ratings.items[r];
+				values[k] = 1;
 			} else {  // test
-				testRatings.add(rating);
+				testRatings.add(ratings.get(r));
 			}
-			count ++;
 		}
+		trainMatrix = new CSRMatrix(userCount, itemCount, users, items, values, trainCount);
+		
+		System.out.printf("[%s]\n", Printer.printTime(
+				System.currentTimeMillis() - startTime));
+		PrintStatistics_Global();
+	}
+	
+	// Print some basic statistics of a global split, with the users new in the test stream.
+	private static void PrintStatistics_Global() {
 		// Count number of new users/items/ratings in the test data
 		HashSet<Integer> newUsers = new HashSet<Integer>();
 		int newRatings = 0;
 		for (int u = 0; u < userCount; u ++) {
-			if (trainMatrix.getRowRef(u).itemCount() == 0)	newUsers.add(u);
+			if (trainMatrix.rowSize(u) == 0)	newUsers.add(u);
 		}
 		for (Rating rating : testRatings) {
 			if (newUsers.contains(rating.userId))	newRatings ++;
 		}
 		
-		System.out.printf("[%s]\n", Printer.printTime(
-				System.currentTimeMillis() - startTime));
-		
-		// Print some basic statistics of the dataset.
-		System.out.println ("Data\t" + ratingFile);
 		System.out.println ("#Users\t" + userCount + ", #newUser: " + newUsers.size());
 		System.out.println ("#Items\t" + itemCount);
 		System.out.printf("#Ratings\t %d (train), %d(test), %d(#newTestRatings)\n", 
@@ -127,71 +128,85 @@ public abstract class main {
 	 *  The items of each user is sorted by time (small->large).
 	 */	
 	public static void ReadRatings_HoldOneOut(String ratingFile) throws IOException {
-			userCount = itemCount = 0;
 			System.out.println("HoldOne out splitting.");
-			// Step 1. Construct data structure for sorting.
+			// Step 1. Read the ratings into primitive columns.
+			System.out.println ("Data\t" + ratingFile);
 			System.out.print("Sort items for each user.");
 			long startTime = System.currentTimeMillis();
-			ArrayList<ArrayList<Rating>> user_ratings = new ArrayList<ArrayList<Rating>>();
-			BufferedReader reader = new BufferedReader(
-					new InputStreamReader(new FileInputStream(ratingFile)));
-			String line;
-			while((line = reader.readLine()) != null) {
-				Rating rating = new Rating(line);
-				if (user_ratings.size() - 1 < rating.userId) { // create a new user
-					user_ratings.add(new ArrayList<Rating>());
-				}
-				user_ratings.get(rating.userId).add(rating);
-				userCount = Math.max(userCount, rating.userId);
-				itemCount = Math.max(itemCount, rating.itemId);
-			}
-			reader.close();
-			userCount ++;
-			itemCount ++;
-			assert userCount == user_ratings.size();
+			RatingTable ratings = RatingParser.parse(ratingFile, threadNum);
+			SplitRatings_HoldOneOut(ratings, startTime);
+		}
+	
+	/**
+	 * Split ratings (e.g. generated ones) by holding out the latest rating of each user.
+	 * @param startTime When loading started, for the timing print.
+	 */
+	public static void SplitRatings_HoldOneOut(RatingTable ratings, long startTime) {
+			userCount = ratings.userCount;
+			itemCount = ratings.itemCount;
 			
 			// Step 2. Sort the ratings of each user by time (small->large).
-			Comparator<Rating> c = new Comparator<Rating>() {
-				public int compare(Rating o1, Rating o2) {
-					if (o1.timestamp - o2.timestamp > 0)	return 1;
-					else if (o1.timestamp - o2.timestamp < 0)	return -1;
-					else return 0;
-				}
-			};
-			for (int u = 0;  u < userCount; u ++) {
-				Collections.sort(user_ratings.get(u), c);
-			}
+			int[] userPtr = new int[userCount + 1];
+			int[] order = ratings.groupByUser(userPtr);
 			System.out.printf("[%s]\n", Printer.printTime(
 					System.currentTimeMillis() - startTime));
 			
 			// Step 3. Generated splitted matrices (implicit 0/1 settings). 
 			System.out.printf("Generate rating matrices.");
 			startTime = System.currentTimeMillis();
-			trainMatrix = new SparseMatrix(userCount, itemCount);
 			testRatings = new ArrayList<Rating>();
+			int[] users = new int[ratings.count], items = new int[ratings.count];
+			double[] values = new double[ratings.count];
+			int trainCount = 0;
 			for (int u = 0; u < userCount; u ++) {
-				ArrayList<Rating> ratings = user_ratings.get(u);
-				for (int i = ratings.size() - 1; i >= 0; i --) {
-					int userId = ratings.get(i).userId;
-					int itemId = ratings.get(i).itemId;
-					if (i == ratings.size() - 1) { // test
-						testRatings.add(ratings.get(i));
+				for (int p = userPtr[u + 1] - 1; p >= userPtr[u]; p --) {
+					int r = order[p];
+					if (p == userPtr[u + 1] - 1) { // test
+						testRatings.add(ratings.get(r));
 					} else { // train
-						trainMatrix.setValue(userId, itemId, 1);
+						users[trainCount] = ratings.users[r];
+						items[trainCount] = ratings.items[r];
+						values[trainCount ++] = 1;
 					} 
 				}
 			}
+			trainMatrix = new CSRMatrix(userCount, itemCount, users, items, values, trainCount);
 			System.out.printf("[%s]\n", Printer.printTime(
 					System.currentTimeMillis() - startTime));
 			
 			// Print some basic statistics of the dataset.
-			System.out.println ("Data\t" + ratingFile);
 			System.out.println ("#Users\t" + userCount);
 			System.out.println ("#Items\t" + itemCount);
 			System.out.printf("#Ratings\t %d (train), %d(test)\n", 
 					trainMatrix.itemCount(), testRatings.size());
 		}
-	
+
+	/**
+	 * Read a split dataset converted by utils.BinaryDataset, instead of splitting a .rating file.
+	 */
+	public static void ReadRatings_Binary(String binFile) throws IOException {
+		System.out.print("Read binary dataset.");
+		long startTime = System.currentTimeMillis();
+		BinaryDataset data = BinaryDataset.read(binFile);
+		userCount = data.trainMatrix.length()[0];
+		itemCount = data.trainMatrix.length()[1];
+		trainMatrix = data.trainMatrix;
+		testRatings = data.testList();
+		System.out.printf("[%s]\n", Printer.printTime(
+				System.currentTimeMillis() - startTime));
+
+		System.out.println ("Data\t" + binFile + (data.split == BinaryDataset.HOLD_ONE_OUT ?
+				" (HoldOne out splitting)" : " (Global splitting with testRatio " + data.testRatio + ")"));
+		if (data.split != BinaryDataset.HOLD_ONE_OUT) {
+			PrintStatistics_Global();
+			return;
+		}
+		System.out.println ("#Users\t" + userCount);
+		System.out.println ("#Items\t" + itemCount);
+		System.out.printf("#Ratings\t %d (train), %d(test)\n",
+				trainMatrix.itemCount(), testRatings.size());
+	}
+
 	/**
 	 * Generate a smaller dataset. 
 	 * @param threshold
@@ -1,5 +1,6 @@
 package main;
 
+import java.io.File;
 import java.io.IOException;
 
 import data_structure.DenseMatrix;
@@ -20,6 +21,7 @@ public class main_MF extends main {
 		int maxIter = 500;
 		double reg = 0.01;
 		double alpha = 0.75;
+		int cgSteps = 0;	// conjugate gradient steps per row, 0 for the exact updates
 		
 		if (argv.length > 0) {
 			dataset_name = argv[0];
@@ -31,9 +33,13 @@ public class main_MF extends main {
 			maxIter = Integer.parseInt(argv[6]);
 			reg = Double.parseDouble(argv[7]);
 			if (argv.length > 8) alpha = Double.parseDouble(argv[8]);
+			if (argv.length > 9) cgSteps = Integer.parseInt(argv[9]);
 		}
 		//ReadRatings_GlobalSplit("data/" + dataset_name + ".rating", 0.1);
-		ReadRatings_HoldOneOut("data/" + dataset_name + ".rating");
+		if (new File("data/" + dataset_name + ".holdout.bin").exists())
+			ReadRatings_Binary("data/" + dataset_name + ".holdout.bin");
+		else
+			ReadRatings_HoldOneOut("data/" + dataset_name + ".rating");
 		
 		System.out.printf("%s: showProgress=%s, factors=%d, maxIter=%d, reg=%f, w0=%.2f, alpha=%.2f\n",
 				method, showProgress, factors, maxIter, reg, w0, alpha);
@@ -48,12 +54,14 @@ public class main_MF extends main {
 		if (method.equalsIgnoreCase("fastals")) {
 			MF_fastALS fals = new MF_fastALS(trainMatrix, testRatings, topK, threadNum,
 					factors, maxIter, w0, alpha, reg, init_mean, init_stdev, showProgress, showLoss);
+			fals.cgSteps = cgSteps;
 			evaluate_model(fals, "MF_fastALS");
 		}
 		
 		if (method.equalsIgnoreCase("als")) {
 			MF_ALS als = new MF_ALS(trainMatrix, testRatings, topK, threadNum,
 					factors, maxIter, w0, reg, init_mean, init_stdev, showProgress, showLoss);
+			als.cgSteps = cgSteps;
 			evaluate_model(als, "MF_ALS");
 		}
 		
@@ -0,0 +1,243 @@
+package main;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import org.json.simple.JSONObject;
+
+import utils.HeapMeter;
+import utils.Printer;
+import utils.RatingParser;
+import utils.SyntheticData;
+import utils.TopKHeap;
+import algorithms.ItemKNN;
+import algorithms.ItemPopularity;
+import algorithms.MF_ALS;
+import algorithms.MF_CD;
+import algorithms.MF_fastALS;
+import algorithms.MFbpr;
+import algorithms.TopKRecommender;
+import data_structure.FlatMatrix;
+import data_structure.MipsIndex;
+import data_structure.PrunedTopK;
+import data_structure.RatingTable;
+
+/**
+ * End-to-end benchmark of the recommenders: for each method, train and evaluate on the
+ * hold-one-out split, then train and run the online protocol on the global split.
+ * Every run is printed and appended to outFile as one JSON line with the training time per
+ * epoch, evaluation time, update latency percentiles, peak heap and allocation rate. For the
+ * MF models, the hold-one-out run also reports the recall@topK and query latency of a
+ * {@link MipsIndex} over the items against the exact scan, and the latency of the exact
+ * {@link PrunedTopK}.
+ *
+ * The data is either data/<name>.rating or generated by utils.SyntheticData from
+ * "synthetic:users,items,nnz,skew".
+ *
+ * Usage: main_benchmark [data=synthetic:20000,10000,500000,1.0] [methods=pop,fastals,als,cd,bpr,knn]
+ * 	[factors=64] [maxIter=10] [outFile=benchmark.jsonl] [threadNum]
+ */
+public class main_benchmark extends main {
+	static String data;
+	static int factors, maxIter;
+	static PrintWriter out;
+	static HeapMeter meter = new HeapMeter();
+
+	public static void main(String argv[]) throws IOException {
+		data = "synthetic:20000,10000,500000,1.0";
+		String methods = "pop,fastals,als,cd,bpr,knn";
+		factors = 64;
+		maxIter = 10;
+		String outFile = "benchmark.jsonl";
+		if (argv.length > 0)	data = argv[0];
+		if (argv.length > 1)	methods = argv[1];
+		if (argv.length > 2)	factors = Integer.parseInt(argv[2]);
+		if (argv.length > 3)	maxIter = Integer.parseInt(argv[3]);
+		if (argv.length > 4)	outFile = argv[4];
+		if (argv.length > 5)	threadNum = Integer.parseInt(argv[5]);
+
+		long startTime = System.currentTimeMillis();
+		RatingTable ratings;
+		if (data.startsWith("synthetic:")) {
+			String[] params = data.substring("synthetic:".length()).split(",");
+			System.out.println("Data\t" + data);
+			System.out.print("Generate ratings.");
+			ratings = SyntheticData.powerLawRatings(Integer.parseInt(params[0]),
+					Integer.parseInt(params[1]), Integer.parseInt(params[2]),
+					Double.parseDouble(params[3]), 1);
+		} else {
+			System.out.println("Data\tdata/" + data + ".rating");
+			System.out.print("Read ratings.");
+			ratings = RatingParser.parse("data/" + data + ".rating", threadNum);
+		}
+		System.out.printf("[%s]\n", Printer.printTime(System.currentTimeMillis() - startTime));
+		out = new PrintWriter(new FileWriter(outFile, true));
+
+		for (String method : methods.split(",")) {
+			System.out.printf("Benchmark %s: factors=%d, maxIter=%d, threadNum=%d\n",
+					method, factors, maxIter, threadNum);
+			System.out.println("====================================================");
+			System.out.print("Hold out the latest rating of each user.");
+			SplitRatings_HoldOneOut(ratings, System.currentTimeMillis());
+			runOffline(method, create(method));
+
+			System.out.print("Hold out the latest 10% ratings.");
+			SplitRatings_Global(ratings, 0.1, System.currentTimeMillis());
+			runOnline(method, create(method));
+		}
+		out.close();
+	}
+
+	// A model of the method on the current split, with the priors of main_MF and main_online.
+	private static TopKRecommender create(String method) {
+		if (method.equalsIgnoreCase("pop"))
+			return new ItemPopularity(trainMatrix, testRatings, topK, threadNum);
+		if (method.equalsIgnoreCase("fastals"))
+			return new MF_fastALS(trainMatrix, testRatings, topK, threadNum,
+					factors, maxIter, 512, 0.4, 0.01, 0, 0.01, false, false);
+		if (method.equalsIgnoreCase("als"))
+			return new MF_ALS(trainMatrix, testRatings, topK, threadNum,
+					factors, maxIter, 512, 0.01, 0, 0.01, false, false);
+		if (method.equalsIgnoreCase("cd"))
+			return new MF_CD(trainMatrix, testRatings, topK, threadNum,
+					factors, maxIter, 512, 0.01, 0, 0.01, false, false);
+		if (method.equalsIgnoreCase("bpr"))
+			return new MFbpr(trainMatrix, testRatings, topK, threadNum,
+					factors, maxIter, 0.01, false, 0.01, 0, 0.01, 1, false);
+		if (method.equalsIgnoreCase("knn"))
+			return new ItemKNN(trainMatrix, testRatings, topK, threadNum, 200);
+		throw new IllegalArgumentException("Unknown method: " + method);
+	}
+
+	// Train, then evaluate on the held-out ratings.
+	@SuppressWarnings("unchecked")
+	private static void runOffline(String method, TopKRecommender model) {
+		meter.start();
+		model.buildModel();
+		meter.stop();
+		long trainNanos = meter.nanos;
+		long trainAllocated = meter.allocatedBytes;
+		long peak = meter.peakBytes;
+
+		meter.start();
+		model.evaluate(testRatings);
+		meter.stop();
+		JSONObject result = header(method, "holdout");
+		// Popularity and ItemKNN are built in one pass.
+		int epochs = model instanceof ItemPopularity || model instanceof ItemKNN ? 1 : maxIter;
+		result.put("train_ms", trainNanos / 1e6);
+		result.put("epoch_ms", trainNanos / 1e6 / epochs);
+		result.put("train_alloc_mb_per_s", trainAllocated / 1e6 / Math.max(1e-9, trainNanos / 1e9));
+		result.put("eval_ms", meter.nanos / 1e6);
+		result.put("eval_alloc_mb_per_s", meter.allocationRate());
+		result.put("peak_heap_mb", Math.max(peak, meter.peakBytes) / 1e6);
+		result.put("hr", model.hits.mean());
+		result.put("ndcg", model.ndcgs.mean());
+		if (model.itemFactors() != null)	indexReport(result, model);
+		report(result);
+	}
+
+	// Build the item index of an MF model, and compare it to the exact scan on up to 1000 users.
+	@SuppressWarnings("unchecked")
+	private static void indexReport(JSONObject result, TopKRecommender model) {
+		long start = System.nanoTime();
+		MipsIndex index = model.buildIndex(0);
+		result.put("index_build_ms", (System.nanoTime() - start) / 1e6);
+		result.put("index_lists", index.lists());
+		result.put("index_nprobe", index.nprobe);
+
+		FlatMatrix U = model.userFactors();
+		int[] users = new int[Math.min(1000, userCount)];
+		for (int r = 0; r < users.length; r ++)
+			users[r] = (int) ((long) r * userCount / users.length);
+		result.put("index_recall", index.recall(U, users, topK));
+
+		PrunedTopK pruned = new PrunedTopK(model.itemFactors());
+		TopKHeap heap = new TopKHeap(topK);
+		double[] q = new double[index.factors()];
+		long[] searchNanos = new long[users.length], exactNanos = new long[users.length];
+		long[] prunedNanos = new long[users.length];
+		for (int r = 0; r < users.length; r ++) {
+			U.copyRow(users[r], q);
+			start = System.nanoTime();
+			index.search(q, heap);
+			searchNanos[r] = System.nanoTime() - start;
+			start = System.nanoTime();
+			index.exact(q, heap);
+			exactNanos[r] = System.nanoTime() - start;
+			start = System.nanoTime();
+			pruned.search(q, heap, null);
+			prunedNanos[r] = System.nanoTime() - start;
+		}
+		percentiles(result, "index_search", searchNanos);
+		percentiles(result, "exact_scan", exactNanos);
+		percentiles(result, "exact_pruned", prunedNanos);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void percentiles(JSONObject result, String name, long[] nanos) {
+		Arrays.sort(nanos);
+		int n = nanos.length;
+		result.put(name + "_p50_us", nanos[n / 2] / 1e3);
+		result.put(name + "_p99_us", nanos[(int) ((long) n * 99 / 100)] / 1e3);
+	}
+
+	// Train, then run the test stream through the online protocol.
+	@SuppressWarnings("unchecked")
+	private static void runOnline(String method, TopKRecommender model) {
+		meter.start();
+		model.buildModel();
+		meter.stop();
+		long trainNanos = meter.nanos;
+		long peak = meter.peakBytes;
+
+		meter.start();
+		model.evaluateOnline(testRatings, 0);
+		meter.stop();
+		long[] latencies = Arrays.copyOf(model.updateNanos, model.updateNanos.length);
+		Arrays.sort(latencies);
+		int n = latencies.length;
+		JSONObject result = header(method, "global");
+		result.put("train_ms", trainNanos / 1e6);
+		result.put("online_ms", meter.nanos / 1e6);
+		result.put("online_alloc_mb_per_s", meter.allocationRate());
+		result.put("updates", n);
+		if (n > 0) {
+			result.put("update_p50_us", latencies[n / 2] / 1e3);
+			result.put("update_p90_us", latencies[(int) ((long) n * 90 / 100)] / 1e3);
+			result.put("update_p99_us", latencies[(int) ((long) n * 99 / 100)] / 1e3);
+			result.put("update_max_us", latencies[n - 1] / 1e3);
+		}
+		result.put("peak_heap_mb", Math.max(peak, meter.peakBytes) / 1e6);
+		result.put("hr", model.hits.mean());
+		result.put("ndcg", model.ndcgs.mean());
+		report(result);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject header(String method, String split) {
+		JSONObject result = new JSONObject();
+		result.put("method", method);
+		result.put("split", split);
+		result.put("data", data);
+		result.put("users", userCount);
+		result.put("items", itemCount);
+		result.put("train_ratings", trainMatrix.itemCount());
+		result.put("test_ratings", testRatings.size());
+		result.put("factors", factors);
+		result.put("max_iter", maxIter);
+		result.put("threads", threadNum);
+		result.put("processors", Runtime.getRuntime().availableProcessors());
+		result.put("java", System.getProperty("java.version"));
+		return result;
+	}
+
+	private static void report(JSONObject result) {
+		String line = result.toJSONString();
+		System.out.println(line);
+		out.println(line);
+		out.flush();
+	}
+}
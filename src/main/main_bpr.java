@@ -1,7 +1,9 @@
 package main;
 
+import java.io.File;
 import java.io.IOException;
 
+import utils.NegativeSampler;
 import utils.Printer;
 import algorithms.MFbpr;
 import algorithms.ItemPopularity;
@@ -20,18 +22,23 @@ public class main_bpr extends main {
 		int maxIter = 1000;
 		double init_mean = 0;
 		double init_stdev = 0.01;
+		String sampling = "uniform";	// or "pop": negatives by popularity ^ 0.75
 		
 		if (argv.length > 0) {
 			dataset_name = argv[0];
 			factors = Integer.parseInt(argv[1]);
 			lr = Double.parseDouble(argv[2]);
 			reg = Double.parseDouble(argv[3]);
+			if (argv.length > 4)	sampling = argv[4];
 		}
-		ReadRatings_HoldOneOut("data/" + dataset_name + ".rating");
+		if (new File("data/" + dataset_name + ".holdout.bin").exists())
+			ReadRatings_Binary("data/" + dataset_name + ".holdout.bin");
+		else
+			ReadRatings_HoldOneOut("data/" + dataset_name + ".rating");
 		topK = 100;
 		
-		System.out.printf("BPR with factors=%d, lr=%.4f, reg=%.4f, num_dns=%d\n", 
-				factors, lr, reg, num_dns);
+		System.out.printf("BPR with factors=%d, lr=%.4f, reg=%.4f, num_dns=%d, sampling=%s\n", 
+				factors, lr, reg, num_dns, sampling);
 		System.out.println("====================================================");
 		
 		ItemPopularity pop = new ItemPopularity(trainMatrix, testRatings, topK, threadNum);
@@ -39,6 +46,8 @@ public class main_bpr extends main {
 		
 		MFbpr bpr = new MFbpr(trainMatrix, testRatings, topK, threadNum, 
 				factors, maxIter, lr, false, reg, init_mean, init_stdev, num_dns, true);
+		if (sampling.equalsIgnoreCase("pop"))
+			bpr.samplingMode = NegativeSampler.POPULARITY;
 		evaluate_model(bpr, "BPR");
 		
 	} // end main
@@ -0,0 +1,144 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import utils.Printer;
+import algorithms.MF_fastALS;
+import algorithms.OnlinePipeline;
+import data_structure.Rating;
+
+/**
+ * Serve recommendations from MF_fastALS while the test stream is applied by an OnlinePipeline,
+ * and report the update throughput against the latency of the readers.
+ */
+public class main_concurrent extends main {
+	public static void main(String argv[]) throws IOException {
+		String dataset_name = "yelp";
+		double w0 = 512;
+		int factors = 64;
+		int maxIter = 50;
+		double alpha = 0.4;
+		int readers = 4;
+		int queueSize = 1024;
+
+		if (argv.length > 0) {
+			dataset_name = argv[0];
+			w0 = Double.parseDouble(argv[1]);
+			factors = Integer.parseInt(argv[2]);
+			maxIter = Integer.parseInt(argv[3]);
+			alpha = Double.parseDouble(argv[4]);
+			readers = Integer.parseInt(argv[5]);
+			if (argv.length >= 7)	queueSize = Integer.parseInt(argv[6]);
+		}
+		if (new File("data/" + dataset_name + ".global.bin").exists())
+			ReadRatings_Binary("data/" + dataset_name + ".global.bin");
+		else
+			ReadRatings_GlobalSplit("data/" + dataset_name + ".rating", 0.1);
+
+		System.out.printf("Concurrent online updates for FastALS: factors=%d, maxIter=%d, readers=%d, queue=%d\n",
+				factors, maxIter, readers, queueSize);
+		System.out.println("====================================================");
+
+		MF_fastALS fals = new MF_fastALS(trainMatrix, testRatings, topK, threadNum,
+				factors, maxIter, w0, alpha, 0.01, 0, 0.01, false, false);
+		long start = System.currentTimeMillis();
+		fals.buildModel();
+		System.out.printf("Train [%s]\n", Printer.printTime(System.currentTimeMillis() - start));
+		
+		try {
+			runReadersAndUpdates(fals, readers, queueSize);
+		} catch (InterruptedException e) {
+			System.err.println("InterruptException was caught: " + e.getMessage());
+		}
+	}
+	
+	private static void runReadersAndUpdates(MF_fastALS fals, int readers, int queueSize)
+			throws InterruptedException {
+		// Readers alone, as the reference latency.
+		OnlinePipeline pipeline = new OnlinePipeline(fals, queueSize);
+		ReaderThread[] threads = startReaders(pipeline, readers);
+		Thread.sleep(5000);
+		stopReaders(threads, "Readers only", 5000);
+
+		// Readers while the test stream is applied.
+		threads = startReaders(pipeline, readers);
+		long start = System.currentTimeMillis();
+		for (Rating rating : testRatings)
+			pipeline.submit(rating.userId, rating.itemId);
+		pipeline.close();
+		long elapsed = System.currentTimeMillis() - start;
+		stopReaders(threads, "Readers with updates", elapsed);
+		System.out.printf("Updates: %d events in %s, %.1f events/s\n", testRatings.size(),
+				Printer.printTime(elapsed), testRatings.size() * 1000.0 / Math.max(1, elapsed));
+	}
+
+	private static ReaderThread[] startReaders(OnlinePipeline pipeline, int readers) {
+		ReaderThread[] threads = new ReaderThread[readers];
+		for (int t = 0; t < readers; t ++) {
+			threads[t] = new ReaderThread(pipeline, userCount, topK, t);
+			threads[t].start();
+		}
+		return threads;
+	}
+
+	// Stop the readers and print the percentiles of their latencies.
+	private static void stopReaders(ReaderThread[] threads, String name, long elapsed)
+			throws InterruptedException {
+		ArrayList<long[]> parts = new ArrayList<long[]>();
+		int total = 0;
+		for (ReaderThread thread : threads) {
+			thread.running.set(false);
+			thread.join();
+			parts.add(Arrays.copyOf(thread.latencies, thread.count));
+			total += thread.count;
+		}
+		long[] all = new long[total];
+		int pos = 0;
+		for (long[] part : parts) {
+			System.arraycopy(part, 0, all, pos, part.length);
+			pos += part.length;
+		}
+		Arrays.sort(all);
+		if (total == 0) {
+			System.out.printf("%s: no requests\n", name);
+			return;
+		}
+		System.out.printf("%s: %d requests, %.1f requests/s, latency p50=%.3f ms, p99=%.3f ms, max=%.3f ms\n",
+				name, total, total * 1000.0 / Math.max(1, elapsed), all[total / 2] / 1e6,
+				all[(int) Math.min(total - 1, (long) total * 99 / 100)] / 1e6, all[total - 1] / 1e6);
+	}
+}
+
+// Requests the topK of random users in a loop, recording the latency of each request.
+class ReaderThread extends Thread {
+	OnlinePipeline pipeline;
+	int userCount, topK;
+	Random rand;
+	AtomicBoolean running = new AtomicBoolean(true);
+	long[] latencies = new long[1 << 16];
+	int count;
+
+	public ReaderThread(OnlinePipeline pipeline, int userCount, int topK, int seed) {
+		this.pipeline = pipeline;
+		this.userCount = userCount;
+		this.topK = topK;
+		this.rand = new Random(seed);
+	}
+
+	public void run() {
+		int[] items = new int[topK];
+		while (running.get()) {
+			int u = rand.nextInt(userCount);
+			long start = System.nanoTime();
+			pipeline.recommend(u, topK, items);
+			if (count == latencies.length)
+				latencies = Arrays.copyOf(latencies, count * 2);
+			latencies[count ++] = System.nanoTime() - start;
+		}
+	}
+}
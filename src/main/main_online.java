@@ -1,5 +1,6 @@
 package main;
 
+import java.io.File;
 import java.io.IOException;
 
 import data_structure.DenseMatrix;
@@ -9,6 +10,7 @@ import algorithms.MF_ALS;
 import algorithms.MF_CD;
 import algorithms.ItemPopularity;
 import algorithms.MFbpr;
+import algorithms.TopKRecommender;
 
 public class main_online extends main {
 	public static void main(String argv[]) throws IOException {
@@ -22,6 +24,7 @@ public class main_online extends main {
 		double alpha = 0.4;
 		String onlineMode = "ui";
 		double w_new = 1;
+		String snapshot = null;	// model snapshot to warm-start from (and save to)
 		
 		if (argv.length > 0) {
 			dataset_name = argv[0];
@@ -34,8 +37,12 @@ public class main_online extends main {
 			alpha = Double.parseDouble(argv[7]);
 			if (argv.length >= 9)	onlineMode = argv[8];
 			if (argv.length >= 10) w_new = Double.parseDouble(argv[9]);
+			if (argv.length >= 11) snapshot = argv[10];
 		}
-		ReadRatings_GlobalSplit("data/" + dataset_name + ".rating", 0.1);
+		if (new File("data/" + dataset_name + ".global.bin").exists())
+			ReadRatings_Binary("data/" + dataset_name + ".global.bin");
+		else
+			ReadRatings_GlobalSplit("data/" + dataset_name + ".rating", 0.1);
 		
 		System.out.printf("Online evaluation for %s: factors=%d, maxIter=%d, maxInterOnline=%d, interval=%d, onlineMode(bpr only)=%s\n",
 				method, factors, maxIter, maxIterOnline, interval, onlineMode);
@@ -54,7 +61,7 @@ public class main_online extends main {
 		if (method.equalsIgnoreCase("als")) {
 			MF_ALS als = new MF_ALS(trainMatrix, testRatings, topK, threadNum,
 					factors, maxIter, w0, reg, init_mean, init_stdev, showProgress, showLoss);
-			als.buildModel();
+			train(als, snapshot);
 			als.maxIterOnline = maxIterOnline;
 			evaluate_model_online(als, "MF_ALS", interval);
 		}
@@ -63,7 +70,7 @@ public class main_online extends main {
 			MF_fastALS fals = new MF_fastALS(trainMatrix, testRatings, topK, threadNum,
 					factors, maxIter, w0, alpha, reg, init_mean, init_stdev, showProgress, showLoss);
 			fals.w_new = w_new;
-			fals.buildModel();
+			train(fals, snapshot);
 			fals.maxIterOnline = maxIterOnline;
 			evaluate_model_online(fals, "MF_fastALS", interval);
 		}
@@ -72,7 +79,7 @@ public class main_online extends main {
 			MF_CD cd = new MF_CD(trainMatrix, testRatings, topK, threadNum,
 					factors, maxIter, w0, reg, init_mean, init_stdev, showProgress, showLoss);
 			cd.w_new = w_new;
-			cd.buildModel();
+			train(cd, snapshot);
 			cd.maxIterOnline = maxIterOnline;
 			evaluate_model_online(cd, "MF_CD", interval);
 		}
@@ -81,10 +88,25 @@ public class main_online extends main {
 			MFbpr bpr = new MFbpr(trainMatrix, testRatings, topK, threadNum, 
 					factors, maxIter, 0.01, false, reg, init_mean, init_stdev, 1, showProgress);
 			bpr.onlineMode = onlineMode;
-			bpr.buildModel();
+			train(bpr, snapshot);
 			bpr.maxIterOnline = maxIterOnline;
 			evaluate_model_online(bpr, "BPR", interval);
 		}
 	
 	} // end main
+	
+	// Build the model, warm-started from the snapshot file if it exists.
+	// The snapshot is saved again when training ran more epochs.
+	private static void train(TopKRecommender model, String snapshot) throws IOException {
+		if (snapshot != null && new File(snapshot).exists()) {
+			long start = System.currentTimeMillis();
+			model.loadSnapshot(snapshot);
+			System.out.printf("Loaded %s at epoch %d [%s]\n", snapshot, model.epoch, 
+					Printer.printTime(System.currentTimeMillis() - start));
+		}
+		int epoch = model.epoch;
+		model.buildModel();
+		if (snapshot != null && model.epoch != epoch)
+			model.saveSnapshot(snapshot);
+	}
 }
@@ -0,0 +1,109 @@
+package utils;
+
+import java.util.ArrayList;
+
+/**
+ * A small timing harness for micro benchmarks: timed warmup iterations to let the JIT
+ * compile the code, then timed measurement iterations reporting the mean time per
+ * operation and its spread over the iterations.
+ */
+public class Benchmark {
+	/** Values returned by the operations end up here, so that the JIT cannot drop them. */
+	public static volatile double sink;
+
+	/** An operation to time. op counts the calls, e.g. to pick the row to update. */
+	public interface Operation {
+		double run(int op);
+	}
+
+	public int warmupIterations = 3;
+	public int measureIterations = 5;
+	/** Minimum duration of one iteration. */
+	public long iterationMillis = 500;
+
+	public Benchmark() {}
+
+	public Benchmark(int warmupIterations, int measureIterations, long iterationMillis) {
+		this.warmupIterations = warmupIterations;
+		this.measureIterations = measureIterations;
+		this.iterationMillis = iterationMillis;
+	}
+
+	/**
+	 * Run the warmup and measurement iterations of an operation.
+	 */
+	public Result run(String name, Operation operation) {
+		int op = 0;
+		for (int w = 0; w < warmupIterations; w ++)
+			op = iteration(operation, op, null);
+
+		Result result = new Result(name);
+		long[] stats = new long[2];
+		for (int m = 0; m < measureIterations; m ++) {
+			op = iteration(operation, op, stats);
+			result.nsPerOp.add((double) stats[1] / stats[0]);
+			result.ops += stats[0];
+		}
+		return result;
+	}
+
+	// Run the operation until iterationMillis passed; stats gets {ops, nanos}.
+	// The clock is read once per batch of ops, and the batch doubles while it takes less
+	// than 1% of the iteration, so that reading the clock does not add to fast ops.
+	private int iteration(Operation operation, int op, long[] stats) {
+		long deadline = iterationMillis * 1000000L;
+		long start = System.nanoTime(), elapsed = 0;
+		double acc = 0;
+		long count = 0;
+		int batch = 1;
+		while (elapsed < deadline) {
+			for (int b = 0; b < batch; b ++) {
+				acc += operation.run(op ++);
+				if (op < 0)	op = 0;
+			}
+			count += batch;
+			long now = System.nanoTime() - start;
+			if (now - elapsed < deadline / 100 && batch < 1 << 20)	batch *= 2;
+			elapsed = now;
+		}
+		sink = acc;
+		if (stats != null) {
+			stats[0] = count;
+			stats[1] = elapsed;
+		}
+		return op;
+	}
+
+	/**
+	 * Time per operation of each measurement iteration.
+	 */
+	public static class Result {
+		public String name;
+		public long ops;
+		public ArrayList<Double> nsPerOp = new ArrayList<Double>();
+
+		public Result(String name) {
+			this.name = name;
+		}
+
+		public double mean() {
+			double sum = 0;
+			for (double v : nsPerOp)
+				sum += v;
+			return sum / nsPerOp.size();
+		}
+
+		/** Standard deviation over the iterations. */
+		public double stdev() {
+			double mean = mean(), sum = 0;
+			for (double v : nsPerOp)
+				sum += (v - mean) * (v - mean);
+			return nsPerOp.size() > 1 ? Math.sqrt(sum / (nsPerOp.size() - 1)) : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-40s %14.1f ns/op  +- %10.1f  (%d ops)", name, mean(), stdev(), ops);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import data_structure.CSRMatrix;
+import data_structure.Rating;
+import data_structure.RatingTable;
+
+/**
+ * A split dataset (train matrix + test ratings) in a compact binary file, so that
+ * experiments do not re-parse, re-sort and re-split the .rating file on every run.
+ *
+ * Convert once with {@link #convert}, then {@link #read} maps the file and copies the
+ * arrays out in bulk. All numbers are little-endian. Layout of version 1:
+ * <pre>
+ * header:  magic "EALSDATA", int version, int split, double testRatio,
+ *          int userCount, int itemCount, int trainCount, int testCount
+ * train:   int rowPtr[userCount+1], int colIdx[trainCount], float rowVal[trainCount],
+ *          long timestamps[trainCount] (aligned with colIdx),
+ *          int colPtr[itemCount+1], int rowIdx[trainCount], float colVal[trainCount]
+ * test:    int users[testCount], int items[testCount], float scores[testCount],
+ *          long timestamps[testCount]
+ * </pre>
+ */
+public class BinaryDataset {
+	public static final int HOLD_ONE_OUT = 0;
+	public static final int GLOBAL_SPLIT = 1;
+
+	private static final byte[] MAGIC = "EALSDATA".getBytes();
+	private static final int VERSION = 1;
+	// Size of the buffers and mapped windows used for I/O.
+	private static final int WINDOW = 1 << 26;
+
+	/** HOLD_ONE_OUT or GLOBAL_SPLIT. */
+	public int split;
+	/** Ratio of test ratings (global split only). */
+	public double testRatio;
+	/** Users by items matrix of training ratings (implicit, all 1). */
+	public CSRMatrix trainMatrix;
+	/** Timestamp of each training rating, aligned with the CSR entries. */
+	public long[] trainTimestamps;
+	/** Test ratings, one per user (hold-one-out) or sorted by time (global split). */
+	public RatingTable testRatings;
+
+	/**
+	 * Split a .rating file the same way as main.ReadRatings_HoldOneOut (split = HOLD_ONE_OUT)
+	 * or main.ReadRatings_GlobalSplit (split = GLOBAL_SPLIT), and write it to binFile.
+	 */
+	public static BinaryDataset convert(String ratingFile, String binFile, int split,
+			double testRatio, int threadNum) throws IOException {
+		RatingTable ratings = RatingParser.parse(ratingFile, threadNum);
+		BinaryDataset data = new BinaryDataset();
+		data.split = split;
+		data.testRatio = split == GLOBAL_SPLIT ? testRatio : 0;
+
+		// Train ratings in time order, test ratings.
+		int[] train = new int[ratings.count];
+		int trainCount = 0;
+		data.testRatings = new RatingTable(0);
+		if (split == HOLD_ONE_OUT) {
+			int[] userPtr = new int[ratings.userCount + 1];
+			int[] order = ratings.groupByUser(userPtr);
+			for (int u = 0; u < ratings.userCount; u ++) {
+				for (int p = userPtr[u]; p < userPtr[u + 1]; p ++) {
+					int r = order[p];
+					if (p == userPtr[u + 1] - 1)
+						data.testRatings.add(ratings.users[r], ratings.items[r], ratings.scores[r], ratings.timestamps[r]);
+					else
+						train[trainCount ++] = r;
+				}
+			}
+		} else {
+			int[] order = ratings.sortByTime();
+			int testCount = (int) (ratings.count * testRatio);
+			for (int k = 0; k < ratings.count; k ++) {
+				int r = order[k];
+				if (k < ratings.count - testCount)
+					train[trainCount ++] = r;
+				else
+					data.testRatings.add(ratings.users[r], ratings.items[r], ratings.scores[r], ratings.timestamps[r]);
+			}
+		}
+		// Same shape as the rating file, even if the last users/items are only in the test set.
+		data.testRatings.userCount = ratings.userCount;
+		data.testRatings.itemCount = ratings.itemCount;
+
+		int[] rows = new int[trainCount], cols = new int[trainCount];
+		double[] ones = new double[trainCount];
+		for (int k = 0; k < trainCount; k ++) {
+			rows[k] = ratings.users[train[k]];
+			cols[k] = ratings.items[train[k]];
+			ones[k] = 1;
+		}
+		data.trainMatrix = new CSRMatrix(ratings.userCount, ratings.itemCount, rows, cols, ones, trainCount);
+		// Repeated (u, i) pairs keep the latest timestamp.
+		data.trainTimestamps = new long[data.trainMatrix.itemCount()];
+		int[] rowPtr = data.trainMatrix.rowPtr(), colIdx = data.trainMatrix.colIndex();
+		for (int k = 0; k < trainCount; k ++) {
+			int pos = Arrays.binarySearch(colIdx, rowPtr[rows[k]], rowPtr[rows[k] + 1], cols[k]);
+			data.trainTimestamps[pos] = Math.max(data.trainTimestamps[pos], ratings.timestamps[train[k]]);
+		}
+
+		data.write(binFile);
+		return data;
+	}
+
+	/**
+	 * @return The test ratings as Rating objects, as used by the recommenders.
+	 */
+	public ArrayList<Rating> testList() {
+		ArrayList<Rating> list = new ArrayList<Rating>(testRatings.count);
+		for (int k = 0; k < testRatings.count; k ++)
+			list.add(testRatings.get(k));
+		return list;
+	}
+
+	/**
+	 * Write the dataset in the binary format.
+	 */
+	public void write(String binFile) throws IOException {
+		int userCount = trainMatrix.length()[0], itemCount = trainMatrix.length()[1];
+		int trainCount = trainMatrix.itemCount();
+		RandomAccessFile file = new RandomAccessFile(binFile, "rw");
+		try {
+			file.setLength(0);
+			Output out = new Output(file.getChannel());
+			out.buffer.put(MAGIC);
+			out.buffer.putInt(VERSION).putInt(split).putDouble(testRatio);
+			out.buffer.putInt(userCount).putInt(itemCount).putInt(trainCount).putInt(testRatings.count);
+
+			out.writeInts(trainMatrix.rowPtr(), userCount + 1);
+			out.writeInts(trainMatrix.colIndex(), trainCount);
+			out.writeFloats(trainMatrix.rowValues(), trainCount);
+			out.writeLongs(trainTimestamps, trainCount);
+			out.writeInts(trainMatrix.colPtr(), itemCount + 1);
+			out.writeInts(trainMatrix.rowIndex(), trainCount);
+			out.writeFloats(trainMatrix.colValues(), trainCount);
+
+			out.writeInts(testRatings.users, testRatings.count);
+			out.writeInts(testRatings.items, testRatings.count);
+			float[] scores = testRatings.scores;
+			for (int k = 0; k < testRatings.count; k ++) {
+				out.ensure(4);
+				out.buffer.putFloat(scores[k]);
+			}
+			out.writeLongs(testRatings.timestamps, testRatings.count);
+			out.flush();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Read a dataset written by {@link #write(String)}.
+	 */
+	public static BinaryDataset read(String binFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(binFile, "r");
+		try {
+			Input in = new Input(file.getChannel());
+			ByteBuffer header = in.map(MAGIC.length + 32);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(binFile + " is not a binary dataset");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported version " + version + " of " + binFile);
+
+			BinaryDataset data = new BinaryDataset();
+			data.split = header.getInt();
+			data.testRatio = header.getDouble();
+			int userCount = header.getInt(), itemCount = header.getInt();
+			int trainCount = header.getInt(), testCount = header.getInt();
+
+			int[] rowPtr = in.readInts(userCount + 1);
+			int[] colIdx = in.readInts(trainCount);
+			double[] rowVal = in.readFloats(trainCount);
+			data.trainTimestamps = in.readLongs(trainCount);
+			int[] colPtr = in.readInts(itemCount + 1);
+			int[] rowIdx = in.readInts(trainCount);
+			double[] colVal = in.readFloats(trainCount);
+			data.trainMatrix = new CSRMatrix(userCount, itemCount, rowPtr, colIdx, rowVal,
+					colPtr, rowIdx, colVal);
+
+			RatingTable test = new RatingTable(0);
+			test.count = testCount;
+			test.users = in.readInts(testCount);
+			test.items = in.readInts(testCount);
+			double[] scores = in.readFloats(testCount);
+			test.scores = new float[testCount];
+			for (int k = 0; k < testCount; k ++)
+				test.scores[k] = (float) scores[k];
+			test.timestamps = in.readLongs(testCount);
+			test.userCount = userCount;
+			test.itemCount = itemCount;
+			data.testRatings = test;
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	// Buffered little-endian writer over a file channel.
+	private static class Output {
+		FileChannel channel;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes)	flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		void writeInts(int[] values, int count) throws IOException {
+			for (int k = 0; k < count; ) {
+				ensure(4);
+				int n = Math.min(count - k, buffer.remaining() / 4);
+				buffer.asIntBuffer().put(values, k, n);
+				buffer.position(buffer.position() + 4 * n);
+				k += n;
+			}
+		}
+
+		void writeLongs(long[] values, int count) throws IOException {
+			for (int k = 0; k < count; ) {
+				ensure(8);
+				int n = Math.min(count - k, buffer.remaining() / 8);
+				buffer.asLongBuffer().put(values, k, n);
+				buffer.position(buffer.position() + 8 * n);
+				k += n;
+			}
+		}
+
+		void writeFloats(double[] values, int count) throws IOException {
+			for (int k = 0; k < count; k ++) {
+				ensure(4);
+				buffer.putFloat((float) values[k]);
+			}
+		}
+	}
+
+	// Sequential little-endian reader that maps the file window by window.
+	private static class Input {
+		FileChannel channel;
+		long position;
+
+		Input(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		ByteBuffer map(long bytes) throws IOException {
+			if (position + bytes > channel.size())
+				throw new IOException("Binary dataset is truncated");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+			position += bytes;
+			return buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		int[] readInts(int count) throws IOException {
+			int[] values = new int[count];
+			for (int k = 0; k < count; ) {
+				int n = Math.min(count - k, WINDOW / 4);
+				map(4L * n).asIntBuffer().get(values, k, n);
+				k += n;
+			}
+			return values;
+		}
+
+		long[] readLongs(int count) throws IOException {
+			long[] values = new long[count];
+			for (int k = 0; k < count; ) {
+				int n = Math.min(count - k, WINDOW / 8);
+				map(8L * n).asLongBuffer().get(values, k, n);
+				k += n;
+			}
+			return values;
+		}
+
+		double[] readFloats(int count) throws IOException {
+			double[] values = new double[count];
+			for (int k = 0; k < count; ) {
+				int n = Math.min(count - k, WINDOW / 4);
+				ByteBuffer buffer = map(4L * n);
+				for (int t = 0; t < n; t ++)
+					values[k + t] = buffer.getFloat();
+				k += n;
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Convert a .rating file, e.g.
+	 * BinaryDataset data/yelp.rating data/yelp.holdout.bin holdout
+	 * BinaryDataset data/yelp.rating data/yelp.global.bin global 0.1
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.out.println("Usage: BinaryDataset <ratingFile> <binFile> holdout|global [testRatio]");
+			return;
+		}
+		int split = args[2].equalsIgnoreCase("global") ? GLOBAL_SPLIT : HOLD_ONE_OUT;
+		double testRatio = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+		long start = System.currentTimeMillis();
+		BinaryDataset data = convert(args[0], args[1], split, testRatio,
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("Converted %s to %s: #train %d, #test %d [%s]\n", args[0], args[1],
+				data.trainMatrix.itemCount(), data.testRatings.count,
+				Printer.printTime(System.currentTimeMillis() - start));
+	}
+}
@@ -0,0 +1,92 @@
+package utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Measures the peak heap usage and the bytes allocated by all threads between start and stop.
+ *
+ * The allocated bytes are the heap growth plus what every garbage collection in between
+ * reclaimed, so threads that ended before stop (e.g. evaluation threads) are counted too.
+ */
+public class HeapMeter {
+	private final ArrayList<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+	private final AtomicLong reclaimed = new AtomicLong();
+	private volatile boolean running;
+	private long usedAtStart, startNanos;
+
+	/** Results of the last start/stop. */
+	public long peakBytes, allocatedBytes, nanos;
+
+	public HeapMeter() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				heapPools.add(pool);
+		}
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				if (!running || !notification.getType().equals(
+						GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+					return;
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+						(CompositeData) notification.getUserData());
+				Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+				Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+				long freed = 0;
+				for (Map.Entry<String, MemoryUsage> entry : before.entrySet()) {
+					MemoryUsage usage = after.get(entry.getKey());
+					freed += entry.getValue().getUsed() - (usage == null ? 0 : usage.getUsed());
+				}
+				reclaimed.addAndGet(freed);
+			}
+		};
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc instanceof NotificationEmitter)
+				((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+		}
+	}
+
+	public void start() {
+		for (MemoryPoolMXBean pool : heapPools)
+			pool.resetPeakUsage();
+		reclaimed.set(0);
+		usedAtStart = used();
+		running = true;
+		startNanos = System.nanoTime();
+	}
+
+	public void stop() {
+		nanos = System.nanoTime() - startNanos;
+		running = false;
+		allocatedBytes = used() - usedAtStart + reclaimed.get();
+		// The sum of the pool peaks bounds the heap peak, pools peak at different times.
+		peakBytes = 0;
+		for (MemoryPoolMXBean pool : heapPools)
+			peakBytes += pool.getPeakUsage().getUsed();
+	}
+
+	/** Allocated megabytes per second of the last start/stop. */
+	public double allocationRate() {
+		return allocatedBytes / 1e6 / Math.max(1e-9, nanos / 1e9);
+	}
+
+	private long used() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools)
+			used += pool.getUsage().getUsed();
+		return used;
+	}
+}
@@ -0,0 +1,261 @@
+package utils;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registry of named counters and nanosecond timers for the phases of training, online updates
+ * and serving (e.g. update_user, the SU/SV cache updates, predict, top-K selection).
+ *
+ * Counters and timers sum into striped LongAdders, so threads recording at once do not contend.
+ * Recording is off unless enabled: a timer then costs a read of {@link #enabled}, and no clock.
+ * Start the JVM with -Dmetrics to enable it and publish every metric as an MBean under
+ * {@value #DOMAIN}, and with -Dmetrics=N to also print a snapshot every N seconds.
+ *
+ * A timer is used as:
+ * <pre>
+ *   long start = Metrics.start();
+ *   ...
+ *   TIMER.stop(start);
+ * </pre>
+ */
+public class Metrics {
+	public static final String DOMAIN = "eals";
+
+	/** Whether counters and timers record. */
+	public static volatile boolean enabled;
+
+	private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	// Whether metrics are published to JMX, including the ones created later.
+	private static boolean published;
+	private static ScheduledExecutorService reporter;
+
+	static {
+		String property = System.getProperty("metrics");
+		if (property != null && !property.equals("false")) {
+			enabled = true;
+			publish();
+			try {
+				long period = Long.parseLong(property);
+				if (period > 0)	startSnapshots(period, System.out);
+			} catch (NumberFormatException e) {
+				// -Dmetrics or -Dmetrics=true: no periodic snapshot.
+			}
+		}
+	}
+
+	/** Attributes of a counter MBean. */
+	public interface CounterMBean {
+		long getCount();
+		void reset();
+	}
+
+	/** Attributes of a timer MBean. */
+	public interface TimerMBean {
+		long getCount();
+		long getTotalNanos();
+		double getMeanNanos();
+		long getMaxNanos();
+		void reset();
+	}
+
+	/** A monotonic count of events. */
+	public static class Counter implements CounterMBean {
+		private final LongAdder count = new LongAdder();
+
+		public void inc() {
+			if (enabled)	count.increment();
+		}
+
+		public void add(long n) {
+			if (enabled)	count.add(n);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public void reset() {
+			count.reset();
+		}
+	}
+
+	/** The count, total and largest duration of timed calls. */
+	public static class Timer implements TimerMBean {
+		private final LongAdder count = new LongAdder(), total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+			public long applyAsLong(long a, long b) {
+				return Math.max(a, b);
+			}
+		}, 0);
+
+		/**
+		 * Record the time since start, from {@link Metrics#start()}; nothing if start is 0,
+		 * i.e. recording was off when the call began.
+		 */
+		public void stop(long start) {
+			if (start != 0)	record(System.nanoTime() - start);
+		}
+
+		public void record(long nanos) {
+			count.increment();
+			total.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return total.sum();
+		}
+
+		public double getMeanNanos() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) total.sum() / n;
+		}
+
+		public long getMaxNanos() {
+			return max.get();
+		}
+
+		public void reset() {
+			count.reset();
+			total.reset();
+			max.reset();
+		}
+	}
+
+	/**
+	 * @return The start of a timed call, or 0 if recording is off.
+	 */
+	public static long start() {
+		if (!enabled)	return 0;
+		long now = System.nanoTime();
+		return now == 0 ? 1 : now;
+	}
+
+	/** @return The counter of the given name, created on first use. */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter != null)	return counter;
+		Counter created = new Counter();
+		counter = counters.putIfAbsent(name, created);
+		if (counter != null)	return counter;
+		register("Counter", name, created, CounterMBean.class);
+		return created;
+	}
+
+	/** @return The timer of the given name, created on first use. */
+	public static Timer timer(String name) {
+		Timer timer = timers.get(name);
+		if (timer != null)	return timer;
+		Timer created = new Timer();
+		timer = timers.putIfAbsent(name, created);
+		if (timer != null)	return timer;
+		register("Timer", name, created, TimerMBean.class);
+		return created;
+	}
+
+	/**
+	 * Publish every metric to the platform MBean server, as DOMAIN:type=Timer,name=... (or
+	 * type=Counter); metrics created later are published when created.
+	 */
+	public static synchronized void publish() {
+		if (published)	return;
+		published = true;
+		for (String name : counters.keySet())
+			register("Counter", name, counters.get(name), CounterMBean.class);
+		for (String name : timers.keySet())
+			register("Timer", name, timers.get(name), TimerMBean.class);
+	}
+
+	private static synchronized <T> void register(String type, String name, T metric, Class<T> mbean) {
+		if (!published)	return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName))
+				server.registerMBean(new StandardMBean(metric, mbean), objectName);
+		} catch (JMException e) {
+			throw new RuntimeException("Registering metric " + name + " failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Print a snapshot to out every period seconds, from a daemon thread, replacing the
+	 * previous schedule if any.
+	 */
+	public static synchronized void startSnapshots(long period, final PrintStream out) {
+		stopSnapshots();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long start = System.currentTimeMillis();
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				out.printf("Metrics [%s]\n%s", Printer.printTime(System.currentTimeMillis() - start), 
+						snapshot());
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopSnapshots() {
+		if (reporter != null)	reporter.shutdownNow();
+		reporter = null;
+	}
+
+	/**
+	 * @return The counts of the counters and the count, total, mean and max time of the timers,
+	 * one metric per line by name. Metrics that never recorded are left out.
+	 */
+	public static String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		ArrayList<String> names = new ArrayList<String>(counters.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			long count = counters.get(name).getCount();
+			if (count > 0)	sb.append(String.format("%-16s count=%d\n", name, count));
+		}
+		names = new ArrayList<String>(timers.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			Timer timer = timers.get(name);
+			long count = timer.getCount();
+			if (count == 0)	continue;
+			sb.append(String.format("%-16s count=%d total=%s mean=%.0fns max=%dns\n", name, count,
+					Printer.printTime(timer.getTotalNanos() / 1000000), timer.getMeanNanos(),
+					timer.getMaxNanos()));
+		}
+		return sb.toString();
+	}
+
+	/** Reset all counters and timers to zero. */
+	public static void reset() {
+		for (Counter counter : counters.values())
+			counter.reset();
+		for (Timer timer : timers.values())
+			timer.reset();
+	}
+}
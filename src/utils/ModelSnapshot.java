@@ -0,0 +1,348 @@
+package utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import data_structure.CSRMatrix;
+import data_structure.DenseMatrix;
+import data_structure.FlatMatrix;
+
+/**
+ * Named blocks of model parameters (latent factors, caches, weights) in one binary file,
+ * used to save a trained model and warm-start it later without retraining.
+ *
+ * All numbers are little-endian. Layout of version 1:
+ * <pre>
+ * header:  magic "EALSSNAP", int version, int epoch, int blockCount, int 0, byte model[32]
+ * table:   per block: byte name[32], int type, int rows, int columns, int 0, long offset
+ * data:    the blocks in row-major order, each starting at an 8-byte aligned offset
+ * </pre>
+ * Reading maps the blocks with FileChannel.map, and copies them straight into the
+ * arrays of the model with bulk buffer gets, without any parsing.
+ */
+public class ModelSnapshot {
+	public static final int FLOAT64 = 0;
+	public static final int FLOAT32 = 1;
+	public static final int INT32 = 2;
+
+	private static final byte[] MAGIC = "EALSSNAP".getBytes();
+	private static final int VERSION = 1;
+	private static final int NAME_BYTES = 32;
+	private static final int HEADER_BYTES = 24 + NAME_BYTES;
+	private static final int ENTRY_BYTES = NAME_BYTES + 24;
+	// Size of the write buffer and (at most) of the mapped windows.
+	private static final int WINDOW = 1 << 26;
+
+	/** Name of the model class, checked when loading. */
+	public String model;
+	/** Number of training epochs done when the snapshot was taken. */
+	public int epoch;
+
+	private LinkedHashMap<String, Block> blocks = new LinkedHashMap<String, Block>();
+
+	public ModelSnapshot(String model, int epoch) {
+		this.model = model;
+		this.epoch = epoch;
+	}
+
+	/*========================================
+	 * Adding blocks
+	 *========================================*/
+	public void put(String name, FlatMatrix m) {
+		if (m.isSingle())
+			add(name, FLOAT32, m.numRows(), m.numColumns(), ((FlatMatrix.Float32) m).getData());
+		else
+			add(name, FLOAT64, m.numRows(), m.numColumns(), ((FlatMatrix.Float64) m).getData());
+	}
+
+	public void put(String name, DenseMatrix m) {
+		double[][] rows = new double[m.numRows()][];
+		for (int r = 0; r < rows.length; r ++)
+			rows[r] = m.row(r, false).getData();
+		add(name, FLOAT64, m.numRows(), m.numColumns(), rows);
+	}
+
+	public void put(String name, double[] v) {
+		add(name, FLOAT64, v.length, 1, v);
+	}
+
+	public void put(String name, int[] v) {
+		add(name, INT32, v.length, 1, v);
+	}
+
+	/**
+	 * Add a sparse matrix as the blocks name.rowPtr, name.colIdx and name.values.
+	 */
+	public void put(String name, CSRMatrix m) {
+		put(name + ".shape", m.length());
+		put(name + ".rowPtr", m.rowPtr());
+		put(name + ".colIdx", m.colIndex());
+		put(name + ".values", m.rowValues());
+	}
+
+	private void add(String name, int type, int rows, int columns, Object data) {
+		if (name.getBytes().length > NAME_BYTES)
+			throw new RuntimeException("Block name is too long: " + name);
+		Block block = new Block();
+		block.name = name;
+		block.type = type;
+		block.rows = rows;
+		block.columns = columns;
+		block.data = data;
+		blocks.put(name, block);
+	}
+
+	/*========================================
+	 * Getting blocks
+	 *========================================*/
+	public boolean contains(String name) {
+		return blocks.containsKey(name);
+	}
+
+	/**
+	 * @return the block as a flat matrix, in the precision it was saved in.
+	 */
+	public FlatMatrix getFlat(String name) throws IOException {
+		Block block = get(name, -1);
+		if (block.type == INT32)
+			throw new IOException("Block " + name + " is not a matrix");
+		FlatMatrix m = FlatMatrix.create(block.rows, block.columns, block.type == FLOAT32);
+		if (block.type == FLOAT32)
+			block.copyTo(((FlatMatrix.Float32) m).getData(), 0);
+		else
+			block.copyTo(((FlatMatrix.Float64) m).getData(), 0);
+		return m;
+	}
+
+	public DenseMatrix getDense(String name) throws IOException {
+		Block block = get(name, FLOAT64);
+		DenseMatrix m = new DenseMatrix(block.rows, block.columns);
+		for (int r = 0; r < block.rows; r ++)
+			block.copyTo(m.row(r, false).getData(), r);
+		return m;
+	}
+
+	public double[] getDoubles(String name) throws IOException {
+		Block block = get(name, FLOAT64);
+		double[] v = new double[block.rows * block.columns];
+		block.copyTo(v, 0);
+		return v;
+	}
+
+	public int[] getInts(String name) throws IOException {
+		Block block = get(name, INT32);
+		int[] v = new int[block.rows * block.columns];
+		block.copyTo(v, 0);
+		return v;
+	}
+
+	/**
+	 * @return the sparse matrix saved by {@link #put(String, CSRMatrix)}.
+	 */
+	public CSRMatrix getCSR(String name) throws IOException {
+		int[] shape = getInts(name + ".shape");
+		int[] rowPtr = getInts(name + ".rowPtr");
+		int[] colIdx = getInts(name + ".colIdx");
+		double[] values = getDoubles(name + ".values");
+		int[] rows = new int[colIdx.length];
+		for (int r = 0; r < shape[0]; r ++)
+			Arrays.fill(rows, rowPtr[r], rowPtr[r + 1], r);
+		return new CSRMatrix(shape[0], shape[1], rows, colIdx, values, colIdx.length);
+	}
+
+	private Block get(String name, int type) throws IOException {
+		Block block = blocks.get(name);
+		if (block == null)
+			throw new IOException("Snapshot of " + model + " has no block " + name);
+		if (type >= 0 && block.type != type)
+			throw new IOException("Block " + name + " has type " + block.type + " instead of " + type);
+		return block;
+	}
+
+	/*========================================
+	 * File I/O
+	 *========================================*/
+	public void write(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+
+			buffer.put(MAGIC).putInt(VERSION).putInt(epoch).putInt(blocks.size()).putInt(0);
+			putName(buffer, model);
+			long offset = align(HEADER_BYTES + (long) ENTRY_BYTES * blocks.size());
+			for (Block block : blocks.values()) {
+				putName(buffer, block.name);
+				buffer.putInt(block.type).putInt(block.rows).putInt(block.columns).putInt(0);
+				buffer.putLong(offset);
+				block.offset = offset;
+				offset = align(offset + block.bytes());
+			}
+			for (Block block : blocks.values()) {
+				if (buffer.remaining() < 8)	flush(channel, buffer);
+				while (channel.position() + buffer.position() < block.offset)
+					buffer.put((byte) 0);
+				if (block.data instanceof double[][]) {
+					for (double[] row : (double[][]) block.data)
+						write(channel, buffer, row, row.length);
+				} else {
+					write(channel, buffer, block.data, block.columns * block.rows);
+				}
+			}
+			flush(channel, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	// Append count values of a primitive array, flushing the buffer when full.
+	private static void write(FileChannel channel, ByteBuffer buffer, Object data, int count)
+			throws IOException {
+		for (int k = 0; k < count; ) {
+			if (buffer.remaining() < 8)	flush(channel, buffer);
+			int n;
+			if (data instanceof double[]) {
+				n = Math.min(count - k, buffer.remaining() / 8);
+				buffer.asDoubleBuffer().put((double[]) data, k, n);
+				buffer.position(buffer.position() + 8 * n);
+			} else if (data instanceof float[]) {
+				n = Math.min(count - k, buffer.remaining() / 4);
+				buffer.asFloatBuffer().put((float[]) data, k, n);
+				buffer.position(buffer.position() + 4 * n);
+			} else {
+				n = Math.min(count - k, buffer.remaining() / 4);
+				buffer.asIntBuffer().put((int[]) data, k, n);
+				buffer.position(buffer.position() + 4 * n);
+			}
+			k += n;
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Read the block table of a snapshot file and map its blocks.
+	 */
+	public static ModelSnapshot read(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_BYTES)
+				throw new IOException(file + " is not a model snapshot");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException(file + " is not a model snapshot");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported version " + version + " of " + file);
+			int epoch = header.getInt();
+			int blockCount = header.getInt();
+			header.getInt();
+			ModelSnapshot snapshot = new ModelSnapshot(getName(header), epoch);
+
+			ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+					(long) ENTRY_BYTES * blockCount).order(ByteOrder.LITTLE_ENDIAN);
+			for (int b = 0; b < blockCount; b ++) {
+				Block block = new Block();
+				block.name = getName(table);
+				block.type = table.getInt();
+				block.rows = table.getInt();
+				block.columns = table.getInt();
+				table.getInt();
+				block.offset = table.getLong();
+				if (block.offset + block.bytes() > channel.size())
+					throw new IOException("Block " + block.name + " of " + file + " is truncated");
+				block.map(channel);
+				snapshot.blocks.put(block.name, block);
+			}
+			return snapshot;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	private static void putName(ByteBuffer buffer, String name) {
+		byte[] bytes = Arrays.copyOf(name.getBytes(), NAME_BYTES);
+		buffer.put(bytes);
+	}
+
+	private static String getName(ByteBuffer buffer) {
+		byte[] bytes = new byte[NAME_BYTES];
+		buffer.get(bytes);
+		int len = 0;
+		while (len < NAME_BYTES && bytes[len] != 0)	len ++;
+		return new String(bytes, 0, len);
+	}
+
+	// One named block: the array to write, or the mapped windows after reading.
+	private static class Block {
+		String name;
+		int type, rows, columns;
+		long offset;
+		Object data;
+		// Windows of whole rows, so that a row never spans two windows.
+		ArrayList<ByteBuffer> windows;
+		int windowRows;
+
+		int elementBytes() {
+			return type == FLOAT64 ? 8 : 4;
+		}
+
+		long bytes() {
+			return (long) rows * columns * elementBytes();
+		}
+
+		void map(FileChannel channel) throws IOException {
+			long rowBytes = (long) columns * elementBytes();
+			windowRows = (int) Math.max(1, Math.min(rows, WINDOW / Math.max(1, rowBytes)));
+			windows = new ArrayList<ByteBuffer>();
+			for (int r = 0; r < rows; r += windowRows) {
+				int n = Math.min(windowRows, rows - r);
+				windows.add(channel.map(FileChannel.MapMode.READ_ONLY, offset + r * rowBytes, n * rowBytes)
+						.order(ByteOrder.LITTLE_ENDIAN));
+			}
+		}
+
+		/**
+		 * Copy rows [fromRow, rows) of the block into dst (a primitive array of the block type),
+		 * or until dst is full.
+		 */
+		void copyTo(Object dst, int fromRow) {
+			int pos = 0;
+			int length = dst instanceof double[] ? ((double[]) dst).length
+					: dst instanceof float[] ? ((float[]) dst).length : ((int[]) dst).length;
+			for (int w = fromRow / windowRows; w < windows.size() && pos < length; w ++) {
+				ByteBuffer window = windows.get(w).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+				int skip = w == fromRow / windowRows ? (fromRow % windowRows) * columns : 0;
+				window.position(skip * elementBytes());
+				int n = Math.min(length - pos, window.remaining() / elementBytes());
+				if (dst instanceof double[])
+					window.asDoubleBuffer().get((double[]) dst, pos, n);
+				else if (dst instanceof float[])
+					window.asFloatBuffer().get((float[]) dst, pos, n);
+				else
+					window.asIntBuffer().get((int[]) dst, pos, n);
+				pos += n;
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package utils;
+
+import java.util.SplittableRandom;
+
+import data_structure.CSRMatrix;
+import data_structure.DenseMatrix;
+import data_structure.Kernels;
+import data_structure.UserItems;
+
+/**
+ * Draws negative items for a user, i.e. items the user did not rate in a training matrix.
+ * Items are drawn uniformly, or proportionally to popularity ^ alpha (the item weighting of
+ * MF_fastALS) from a Walker alias table, in O(1). Whether the user rated an item is checked
+ * by a binary search in the sorted items of the user, which takes no memory beyond the rows.
+ *
+ * Any number of threads can share the sampler, each with its own random generator, as long
+ * as no ratings are added meanwhile. Users must leave some item with a non-zero weight unrated.
+ */
+public class NegativeSampler {
+	public static final int UNIFORM = 0;
+	public static final int POPULARITY = 1;
+
+	private final int mode;
+	private final int itemCount;
+	// Alias table: item k is kept with probability prob[k], else alias[k] is taken.
+	private double[] prob;
+	private int[] alias;
+	// Items rated by each user.
+	private final UserItems rated;
+
+	/**
+	 * @param train The positive (user, item) pairs.
+	 * @param mode UNIFORM or POPULARITY.
+	 * @param alpha Exponent of the item popularity for POPULARITY (0 gives uniform).
+	 */
+	public NegativeSampler(CSRMatrix train, int mode, double alpha) {
+		this.mode = mode;
+		this.itemCount = train.length()[1];
+		rated = new UserItems(train);
+
+		if (mode == POPULARITY) {
+			int[] colPtr = train.colPtr();
+			double[] weights = new double[itemCount];
+			for (int i = 0; i < itemCount; i ++)
+				weights[i] = Math.pow(colPtr[i + 1] - colPtr[i], alpha);
+			buildAlias(weights);
+		} else if (mode != UNIFORM) {
+			throw new IllegalArgumentException("Unknown sampling mode: " + mode);
+		}
+	}
+
+	// Vose's construction of the alias table of the weights.
+	private void buildAlias(double[] weights) {
+		int n = weights.length;
+		prob = new double[n];
+		alias = new int[n];
+		double sum = 0;
+		for (double w : weights)
+			sum += w;
+		if (!(sum > 0))
+			throw new IllegalArgumentException("All items have weight 0");
+		// Scaled weights below 1 go to the front of the worklist, the others to the back.
+		int[] work = new int[n];
+		int small = 0, large = n;
+		for (int i = 0; i < n; i ++) {
+			prob[i] = weights[i] * n / sum;
+			if (prob[i] < 1)	work[small ++] = i;
+			else	work[-- large] = i;
+		}
+		int s = 0;
+		while (s < small && large < n) {
+			int less = work[s ++], more = work[large];
+			alias[less] = more;
+			prob[more] += prob[less] - 1;
+			if (prob[more] < 1) {
+				// more moves to the small list, in the slot just freed.
+				work[-- s] = more;
+				large ++;
+			}
+		}
+		// The rest is 1 up to rounding.
+		while (s < small)	prob[work[s ++]] = 1;
+		while (large < n)	prob[work[large ++]] = 1;
+	}
+
+	/**
+	 * @return whether user u rated item i.
+	 */
+	public boolean contains(int u, int i) {
+		return rated.contains(u, i);
+	}
+
+	/**
+	 * Add item i to the items rated by user u, e.g. on an online update, so that it is no
+	 * longer drawn as a negative of u. The popularity weights are left as built.
+	 */
+	public void add(int u, int i) {
+		rated.add(u, i);
+	}
+
+	/**
+	 * @return an item drawn from the distribution, rated or not.
+	 */
+	public int draw(SplittableRandom rand) {
+		int i = rand.nextInt(itemCount);
+		if (mode == POPULARITY && rand.nextDouble() >= prob[i])
+			i = alias[i];
+		return i;
+	}
+
+	/**
+	 * @return an item user u did not rate.
+	 */
+	public int sample(int u, SplittableRandom rand) {
+		int i = draw(rand);
+		while (contains(u, i))
+			i = draw(rand);
+		return i;
+	}
+
+	/**
+	 * Dynamic negative sampling [Zhang et al. SIGIR 2013]: draw candidates.length negatives
+	 * for user u and return the one V scores highest against the user vector pu.
+	 * The candidates are drawn first and then scored in one pass.
+	 * @param candidates Scratch space, its length is the number of candidates.
+	 */
+	public int sample(int u, double[] pu, DenseMatrix V, int[] candidates, SplittableRandom rand) {
+		for (int c = 0; c < candidates.length; c ++)
+			candidates[c] = sample(u, rand);
+		int best = candidates[0];
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int c = 0; c < candidates.length; c ++) {
+			double score = Kernels.dot(pu.length, pu, 0, V.row(candidates[c], false).getData(), 0);
+			if (score > bestScore) {
+				best = candidates[c];
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,189 @@
+package utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import data_structure.RatingTable;
+
+/**
+ * Parallel loader of .rating files (userID\t itemID\t score\t timestamp per line).
+ *
+ * The file is memory-mapped and cut into newline-aligned chunks, which are parsed
+ * in parallel byte by byte into primitive columns, without creating a String or a
+ * Rating object per line. The ratings keep the order of the file.
+ */
+public class RatingParser {
+	/** Maximum size of a chunk; a mapping cannot exceed 2GB anyway. */
+	private static final long MAX_CHUNK = 64L << 20;
+
+	/**
+	 * Load a .rating file with the given number of threads.
+	 */
+	public static RatingTable parse(String ratingFile, int threadNum) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(ratingFile, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			// Cut into chunks ending right after a newline (or at the end of file).
+			ArrayList<long[]> chunks = new ArrayList<long[]>();
+			long chunkSize = Math.min(MAX_CHUNK, Math.max(1 << 20, size / (4L * Math.max(1, threadNum)) + 1));
+			long start = 0;
+			while (start < size) {
+				long end = Math.min(size, start + chunkSize);
+				if (end < size) {
+					MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, end - 1,
+							Math.min(size - end + 1, 1 << 16));
+					int k = 0;
+					while (k < tail.limit() && tail.get(k) != '\n')	k ++;
+					if (k == tail.limit())
+						throw new IOException("Line too long near offset " + end + " of " + ratingFile);
+					end = end + k;
+				}
+				chunks.add(new long[] {start, end});
+				start = end;
+			}
+
+			// Parse the chunks in parallel.
+			ArrayList<Callable<RatingTable>> tasks = new ArrayList<Callable<RatingTable>>();
+			for (final long[] chunk : chunks) {
+				tasks.add(new Callable<RatingTable>() {
+					public RatingTable call() throws IOException {
+						MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+								chunk[0], chunk[1] - chunk[0]);
+						return new ChunkParser(buffer, chunk[0]).parse();
+					}
+				});
+			}
+			ForkJoinPool pool = WorkPool.pool(Math.max(1, threadNum));
+			RatingTable table;
+			try {
+				ArrayList<RatingTable> parts = new ArrayList<RatingTable>();
+				for (Future<RatingTable> future : pool.invokeAll(tasks))
+					parts.add(future.get());
+				int total = 0;
+				for (RatingTable part : parts)
+					total += part.count;
+				table = new RatingTable(total);
+				for (RatingTable part : parts)
+					table.addAll(part);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while parsing " + ratingFile, e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)	throw (IOException) e.getCause();
+				throw new IOException("Failed to parse " + ratingFile, e.getCause());
+			}
+			return table;
+		} finally {
+			file.close();
+		}
+	}
+
+	// Byte-level parser over one mapped chunk; pos is the cursor inside the current line.
+	// The offset of the chunk in the file is only used for error messages.
+	private static class ChunkParser {
+		MappedByteBuffer buffer;
+		long offset;
+		int pos, end;
+
+		ChunkParser(MappedByteBuffer buffer, long offset) {
+			this.buffer = buffer;
+			this.offset = offset;
+		}
+
+		RatingTable parse() throws IOException {
+			int limit = buffer.limit();
+			RatingTable table = new RatingTable(Math.max(16, limit / 24));
+			int lineStart = 0;
+			while (lineStart < limit) {
+				int lineEnd = lineStart;
+				while (lineEnd < limit && buffer.get(lineEnd) != '\n')	lineEnd ++;
+				end = lineEnd;
+				if (end > lineStart && buffer.get(end - 1) == '\r')	end --;
+				if (end > lineStart) {  // skip empty lines
+					pos = lineStart;
+					int userId = (int) parseLong();
+					int itemId = (int) parseLong();
+					float score = parseFloat();
+					long timestamp = pos < end ? parseLong() : 0;
+					table.add(userId, itemId, score, timestamp);
+				}
+				lineStart = lineEnd + 1;
+			}
+			return table;
+		}
+
+		// Parse an integer field and move the cursor past the following tab.
+		long parseLong() throws IOException {
+			boolean negative = pos < end && buffer.get(pos) == '-';
+			if (negative)	pos ++;
+			int start = pos;
+			long value = 0;
+			while (pos < end && buffer.get(pos) != '\t') {
+				int digit = buffer.get(pos) - '0';
+				if (digit < 0 || digit > 9)
+					throw new IOException("Invalid number at offset " + (offset + pos));
+				value = value * 10 + digit;
+				pos ++;
+			}
+			if (pos == start)
+				throw new IOException("Missing field at offset " + (offset + pos));
+			pos ++;
+			return negative ? -value : value;
+		}
+
+		// Parse a decimal field like "4", "4.5" or "-1.25"; other forms go to Float.parseFloat.
+		float parseFloat() throws IOException {
+			int start = pos;
+			int fieldEnd = start;
+			while (fieldEnd < end && buffer.get(fieldEnd) != '\t')	fieldEnd ++;
+			pos = fieldEnd + 1;
+
+			int p = start;
+			boolean negative = p < fieldEnd && buffer.get(p) == '-';
+			if (negative)	p ++;
+			long mantissa = 0;
+			int scale = 0, digits = 0;
+			boolean dot = false;
+			for (; p < fieldEnd; p ++) {
+				byte b = buffer.get(p);
+				if (b == '.' && !dot) {
+					dot = true;
+				} else if (b >= '0' && b <= '9' && digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits ++;
+					if (dot)	scale ++;
+				} else {
+					break;
+				}
+			}
+			if (p == fieldEnd && digits > 0) {
+				double value = mantissa / POW10[scale];
+				return (float) (negative ? -value : value);
+			}
+			// Exponents, very long numbers or garbage.
+			byte[] bytes = new byte[fieldEnd - start];
+			for (int k = 0; k < bytes.length; k ++)
+				bytes[k] = buffer.get(start + k);
+			try {
+				return Float.parseFloat(new String(bytes, "US-ASCII"));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid score at offset " + (offset + start));
+			}
+		}
+	}
+
+	private static final double[] POW10 = new double[19];
+	static {
+		POW10[0] = 1;
+		for (int k = 1; k < POW10.length; k ++)
+			POW10[k] = POW10[k - 1] * 10;
+	}
+}
@@ -0,0 +1,50 @@
+package utils;
+
+/**
+ * Reusable buffers of one searching thread, shared by all the indexes it searches (see
+ * data_structure.MipsIndex and PrunedTopK), so that a search allocates nothing.
+ *
+ * The buffers are held per thread and never refer to an index: the threads of the shared
+ * pools live as long as the JVM, and a thread-local value referring to its index would keep
+ * every index the thread ever searched reachable.
+ */
+public final class SearchScratch {
+	private static final ThreadLocal<SearchScratch> local = new ThreadLocal<SearchScratch>() {
+		protected SearchScratch initialValue() {
+			return new SearchScratch();
+		}
+	};
+
+	private double[][] arrays = new double[0][];
+	private TopKHeap heap;
+
+	private SearchScratch() {}
+
+	/** @return The buffers of the calling thread. */
+	public static SearchScratch get() {
+		return local.get();
+	}
+
+	/**
+	 * @return Array number slot of the thread, of at least size entries, with any content.
+	 * It stays valid until the same slot is asked for again.
+	 */
+	public double[] doubles(int slot, int size) {
+		if (slot >= arrays.length) {
+			double[][] grown = new double[slot + 1][];
+			System.arraycopy(arrays, 0, grown, 0, arrays.length);
+			arrays = grown;
+		}
+		double[] array = arrays[slot];
+		if (array == null || array.length < size)
+			arrays[slot] = array = new double[size + (size >> 1)];
+		return array;
+	}
+
+	/** @return A heap of the given capacity, cleared or not. */
+	public TopKHeap heap(int capacity) {
+		if (heap == null || heap.capacity() != capacity)
+			heap = new TopKHeap(capacity);
+		return heap;
+	}
+}
@@ -0,0 +1,54 @@
+package utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * One sequence lock per row of a matrix, for a single writer and any number of readers.
+ *
+ * The writer brackets the update of a row with {@link #beginWrite(int)} and
+ * {@link #endWrite(int)}, which make the sequence of the row odd and then even again.
+ * A reader never blocks the writer: it reads the row between {@link #readBegin(int)}
+ * and {@link #validate(int, int)}, and reads it again if the row was written meanwhile.
+ */
+public class SeqLocks {
+	private static final VarHandle SEQ = MethodHandles.arrayElementVarHandle(int[].class);
+
+	private final int[] seq;
+
+	public SeqLocks(int rows) {
+		seq = new int[rows];
+	}
+
+	/**
+	 * Mark the row as being written. Only one thread may write at a time.
+	 */
+	public void beginWrite(int row) {
+		SEQ.setOpaque(seq, row, (int) SEQ.getOpaque(seq, row) + 1);
+		VarHandle.releaseFence();	// the data writes stay after the odd sequence
+	}
+
+	public void endWrite(int row) {
+		SEQ.setRelease(seq, row, (int) SEQ.getOpaque(seq, row) + 1);
+	}
+
+	/**
+	 * @return the sequence to validate the read against, once the row is not being written.
+	 */
+	public int readBegin(int row) {
+		int s = (int) SEQ.getAcquire(seq, row);
+		while ((s & 1) != 0) {
+			Thread.onSpinWait();
+			s = (int) SEQ.getAcquire(seq, row);
+		}
+		return s;
+	}
+
+	/**
+	 * @return whether the row was not written since {@link #readBegin(int)} returned s.
+	 */
+	public boolean validate(int row, int s) {
+		VarHandle.acquireFence();	// the data reads stay before the check
+		return (int) SEQ.getOpaque(seq, row) == s;
+	}
+}
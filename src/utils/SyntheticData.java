@@ -0,0 +1,76 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import data_structure.CSRMatrix;
+import data_structure.RatingTable;
+import data_structure.SparseMatrix;
+
+/**
+ * Synthetic implicit-feedback datasets for benchmarks, with power-law user activity
+ * and item popularity like real rating data.
+ */
+public class SyntheticData {
+	/**
+	 * Generate a users by items matrix of 1s. Users and items are drawn with probability
+	 * proportional to (rank + 1) ^ -skew, so skew 0 is uniform and larger skews give heavier
+	 * users and more popular items (the lowest ids being the heaviest).
+	 *
+	 * @param nnz The number of ratings to draw; duplicates are merged, so the matrix
+	 * 	may hold a bit fewer.
+	 */
+	public static CSRMatrix powerLaw(int users, int items, int nnz, double skew, long seed) {
+		RatingTable ratings = powerLawRatings(users, items, nnz, skew, seed);
+		double[] ones = new double[nnz];
+		Arrays.fill(ones, 1);
+		return new CSRMatrix(users, items, ratings.users, ratings.items, ones, nnz);
+	}
+
+	/**
+	 * The ratings drawn by {@link #powerLaw(int, int, int, double, long)} as a table, like a
+	 * .rating file: duplicates are kept, the score is 1 and the timestamps are random.
+	 */
+	public static RatingTable powerLawRatings(int users, int items, int nnz, double skew, long seed) {
+		Random rand = new Random(seed);
+		double[] userCdf = powerLawCdf(users, skew);
+		double[] itemCdf = powerLawCdf(items, skew);
+		Random timeRand = new Random(seed + 1);
+		RatingTable ratings = new RatingTable(nnz);
+		for (int k = 0; k < nnz; k ++) {
+			int u = sample(userCdf, rand);
+			ratings.add(u, sample(itemCdf, rand), 1, timeRand.nextInt(Integer.MAX_VALUE));
+		}
+		// Every user gets at least one rating, so that no row is empty.
+		for (int u = 0; u < Math.min(users, nnz); u ++)
+			ratings.users[nnz - 1 - u] = u;
+		ratings.userCount = users;
+		ratings.itemCount = items;
+		return ratings;
+	}
+
+	/**
+	 * The same as {@link #powerLaw(int, int, int, double, long)}, as a SparseMatrix.
+	 */
+	public static SparseMatrix powerLawSparse(int users, int items, int nnz, double skew, long seed) {
+		return powerLaw(users, items, nnz, skew, seed).toSparseMatrix();
+	}
+
+	private static double[] powerLawCdf(int n, double skew) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int r = 0; r < n; r ++) {
+			sum += Math.pow(r + 1, -skew);
+			cdf[r] = sum;
+		}
+		for (int r = 0; r < n; r ++)
+			cdf[r] /= sum;
+		return cdf;
+	}
+
+	private static int sample(double[] cdf, Random rand) {
+		int pos = Arrays.binarySearch(cdf, rand.nextDouble());
+		pos = pos >= 0 ? pos : -pos - 1;
+		return Math.min(pos, cdf.length - 1);
+	}
+}
@@ -0,0 +1,107 @@
+package utils;
+
+/**
+ * Fixed-size MinHeap over (int id, double score) pairs, for selecting the topK
+ * ids by score without boxing. Meant to be cleared and reused for each query.
+ */
+public class TopKHeap {
+	private int K;  // Maximum size of the heap.
+	private int size;
+	private int[] ids;
+	private double[] scores;
+
+	public TopKHeap(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.K = maxSize;
+		this.ids = new int[maxSize];
+		this.scores = new double[maxSize];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int capacity() {
+		return K;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Whether the heap holds K entries.
+	 */
+	public boolean isFull() {
+		return size == K;
+	}
+
+	/**
+	 * @return The smallest score kept in the heap (i.e., the bar to enter once it is full).
+	 */
+	public double minScore() {
+		return scores[0];
+	}
+
+	/**
+	 * Offer an entry. Once the heap is full, it replaces the minimum only if its score is larger.
+	 */
+	public void add(int id, double score) {
+		if (size < K) { // The heap is not full.
+			int pos = size ++;
+			while (pos > 0) {  // sift up
+				int parent = (pos - 1) >>> 1;
+				if (scores[parent] <= score)	break;
+				ids[pos] = ids[parent];
+				scores[pos] = scores[parent];
+				pos = parent;
+			}
+			ids[pos] = id;
+			scores[pos] = score;
+		} else if (score > scores[0]) { // The heap is full.
+			siftDown(0, id, score, size);
+		}
+	}
+
+	// Place (id, score) at pos and move it down within heap[0, n).
+	private void siftDown(int pos, int id, double score, int n) {
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= n)	break;
+			if (child + 1 < n && scores[child + 1] < scores[child])	child ++;
+			if (scores[child] >= score)	break;
+			ids[pos] = ids[child];
+			scores[pos] = scores[child];
+			pos = child;
+		}
+		ids[pos] = id;
+		scores[pos] = score;
+	}
+
+	/**
+	 * Sort the entries by score, Large->Small, in place. The heap property is lost,
+	 * so call {@link #clear()} before adding again.
+	 * @return The number of entries, to be read by {@link #id(int)} and {@link #score(int)}.
+	 */
+	public int sortDescending() {
+		for (int n = size - 1; n > 0; n --) {
+			// Move the current minimum to the end of the heap part.
+			int id = ids[n];
+			double score = scores[n];
+			ids[n] = ids[0];
+			scores[n] = scores[0];
+			siftDown(0, id, score, n);
+		}
+		return size;
+	}
+
+	public int id(int k) {
+		return ids[k];
+	}
+
+	public double score(int k) {
+		return scores[k];
+	}
+}
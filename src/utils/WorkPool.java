@@ -0,0 +1,152 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pools for the parallel loops over rows (users or items): evaluation, ItemKNN
+ * building, the training sweeps and index building. There is one persistent ForkJoinPool per
+ * number of threads, created on first use and reused by every later loop.
+ *
+ * A loop is cut into chunks of about the same cost, e.g. rows weighted by their number of
+ * ratings, several per thread. Each thread claims the next chunk from a shared counter until
+ * none is left, so a thread that got cheap chunks takes more of them and the threads finish
+ * together even on power-law degrees. A thread runs its chunks with its worker index, so that
+ * callers can keep per-thread scratch space and partial sums and reduce them afterwards.
+ */
+public class WorkPool {
+	// Chunks per thread, so that the cost estimates even out.
+	private static final int CHUNKS_PER_THREAD = 8;
+
+	private static final HashMap<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+	/**
+	 * A loop body over a range of positions.
+	 */
+	public interface RangeTask {
+		/**
+		 * Process positions [start, end), on the thread of index worker in [0, threads).
+		 */
+		void run(int worker, int start, int end);
+	}
+
+	/**
+	 * @return The shared pool of the given number of threads.
+	 */
+	public static synchronized ForkJoinPool pool(int threads) {
+		ForkJoinPool pool = pools.get(threads);
+		if (pool == null) {
+			pool = new ForkJoinPool(threads);
+			pools.put(threads, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Run positions [0, total) on threads threads, the cost of position r being
+	 * (ptr[r + 1] - ptr[r]) + base, or base if ptr is null.
+	 */
+	public static void run(int threads, int total, int[] ptr, int base, RangeTask task) {
+		if (threads <= 1) {
+			task.run(0, 0, total);
+			return;
+		}
+		run(threads, split(null, 0, total, ptr, base, threads * CHUNKS_PER_THREAD), task);
+	}
+
+	/**
+	 * Run positions [from, to) of rows on threads threads, the cost of position n being
+	 * (ptr[rows[n] + 1] - ptr[rows[n]]) + base, or base if ptr is null.
+	 */
+	public static void run(int threads, int[] rows, int from, int to, int[] ptr, int base, RangeTask task) {
+		if (threads <= 1) {
+			task.run(0, from, to);
+			return;
+		}
+		run(threads, split(rows, from, to, ptr, base, threads * CHUNKS_PER_THREAD), task);
+	}
+
+	/**
+	 * Run positions [0, costs.length) on threads threads, with the given costs.
+	 */
+	public static void run(int threads, long[] costs, RangeTask task) {
+		if (threads <= 1) {
+			task.run(0, 0, costs.length);
+			return;
+		}
+		long[] prefix = new long[costs.length + 1];
+		for (int r = 0; r < costs.length; r ++)
+			prefix[r + 1] = prefix[r] + costs[r];
+		run(threads, cut(prefix, 0, threads * CHUNKS_PER_THREAD), task);
+	}
+
+	/**
+	 * Chunk bounds of positions [from, to) of rows (positions themselves if rows is null),
+	 * about chunks chunks of equal cost as in {@link #run(int, int[], int, int, int[], int, RangeTask)}.
+	 * Chunk c is [bounds[c], bounds[c + 1]).
+	 */
+	public static int[] split(int[] rows, int from, int to, int[] ptr, int base, int chunks) {
+		long[] prefix = new long[to - from + 1];
+		for (int n = from; n < to; n ++) {
+			int r = rows == null ? n : rows[n];
+			long cost = ptr == null ? 0 : ptr[r + 1] - ptr[r];
+			prefix[n - from + 1] = prefix[n - from] + cost + Math.max(1, base);
+		}
+		return cut(prefix, from, chunks);
+	}
+
+	// Cut the prefix sums of costs into chunks of about equal cost, as bounds offset by from.
+	private static int[] cut(long[] prefix, int from, int chunks) {
+		int n = prefix.length - 1;
+		chunks = Math.max(1, Math.min(chunks, n));
+		int[] bounds = new int[chunks + 1];
+		int count = 1, p = 0;
+		bounds[0] = from;
+		for (int c = 1; c < chunks; c ++) {
+			long target = prefix[n] * c / chunks;
+			while (p < n && prefix[p] < target)	p ++;
+			if (p > bounds[count - 1] - from)	bounds[count ++] = from + p;
+		}
+		bounds[count ++] = from + n;
+		return Arrays.copyOf(bounds, count);
+	}
+
+	/**
+	 * Run the chunks [bounds[c], bounds[c + 1]) on threads threads of the shared pool.
+	 */
+	public static void run(int threads, final int[] bounds, final RangeTask task) {
+		final int chunks = bounds.length - 1;
+		int size = threads;
+		threads = Math.min(threads, chunks);
+		if (threads <= 1) {
+			for (int c = 0; c < chunks; c ++)
+				task.run(0, bounds[c], bounds[c + 1]);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < threads; t ++) {
+			final int worker = t;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (int c = next.getAndIncrement(); c < chunks; c = next.getAndIncrement())
+						task.run(worker, bounds[c], bounds[c + 1]);
+					return null;
+				}
+			});
+		}
+		for (Future<Void> future : pool(size).invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Parallel loop failed: " + e.getMessage(), e);
+			}
+		}
+	}
+}